@@ -0,0 +1,80 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.SecondaryDatabase;
+
+/** a temporary working directory of MScheduler, opened and filled by the code of 'build' */
+class BenchmarkEnvironment implements Closeable
+	{
+	final File directory;
+	final Task.Binding taskBinding;
+	private final SimulatedScheduler scheduler = new SimulatedScheduler();
+	final Database targetsDatabase;
+	final SecondaryDatabase targetsByStatusDatabase;
+	final Database definitionsDatabase;
+	final Database dependentsDatabase;
+	
+	/** the prerequisites of a task must be before it in the list */
+	BenchmarkEnvironment(final List<Task> tasks) throws IOException
+		{
+		this.directory = Files.createTempDirectory("mscheduler.bench.").toFile();
+		this.taskBinding = new Task.Binding(this.directory, this.directory);
+		if(this.scheduler.createWorkingDirectory(this.directory, tasks)!=0)
+			{
+			close();
+			throw new IOException("Cannot create the working directory "+this.directory);
+			}
+		this.targetsDatabase = this.scheduler.getTargetsDatabase();
+		this.targetsByStatusDatabase = this.scheduler.getTargetsByStatusDatabase();
+		this.definitionsDatabase = this.scheduler.getDefinitionsDatabase();
+		this.dependentsDatabase = this.scheduler.getDependentsDatabase();
+		}
+	
+	@Override
+	public void close()
+		{
+		this.scheduler.close();
+		delete(this.directory);
+		}
+	
+	/** recursively deletes a temporary directory */
+	static void delete(final File f)
+		{
+		final File children[] = f.listFiles();
+		if(children!=null)
+			{
+			for(final File c: children) delete(c);
+			}
+		f.delete();
+		}
+	}
@@ -0,0 +1,119 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** 'build' of a Makefile written by SyntheticMakefile in an empty working directory, including 'make -ndr'.
+ * 'make' must be in the PATH */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class BuildBenchmark
+	{
+	@Param({"1000","10000"})
+	public int size;
+	
+	/** graph: j4make reads the whole graph. stream: MakeStreamParser, see option --stream */
+	@Param({"graph","stream"})
+	public String loader;
+	
+	/** option --bulk */
+	@Param({"false","true"})
+	public boolean bulk;
+	
+	private File makefileDirectory;
+	private File makefile;
+	private File workingDirectory;
+	
+	@Setup(Level.Trial)
+	public void writeMakefile() throws IOException
+		{
+		this.makefileDirectory = Files.createTempDirectory("mscheduler.bench.make.").toFile();
+		this.makefile = new File(this.makefileDirectory, "Makefile");
+		SyntheticMakefile.main(new String[]{
+			"-n",String.valueOf(this.size),
+			"-s","0",
+			"-o",this.makefile.getPath()
+			});
+		if(!this.makefile.exists()) throw new IOException("Cannot create "+this.makefile);
+		}
+	
+	@Setup(Level.Invocation)
+	public void createWorkingDirectory() throws IOException
+		{
+		this.workingDirectory = Files.createTempDirectory("mscheduler.bench.workdir.").toFile();
+		}
+	
+	@TearDown(Level.Invocation)
+	public void deleteWorkingDirectory()
+		{
+		BenchmarkEnvironment.delete(this.workingDirectory);
+		}
+	
+	@TearDown(Level.Trial)
+	public void deleteMakefile()
+		{
+		BenchmarkEnvironment.delete(this.makefileDirectory);
+		}
+	
+	@Benchmark
+	public int build()
+		{
+		final List<String> args = new ArrayList<>();
+		args.add("build");
+		args.add("-d");
+		args.add(this.workingDirectory.getAbsolutePath());
+		args.add("-m");
+		args.add(this.makefile.getAbsolutePath());
+		if(this.loader.equals("stream")) args.add("--stream");
+		if(this.bulk) args.add("--bulk");
+		final int ret = new SimulatedScheduler().instanceMain(args.toArray(new String[args.size()]));
+		if(ret!=0) throw new IllegalStateException("build failed: "+args);
+		return ret;
+		}
+	}
@@ -0,0 +1,116 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** the number of cores of a task, guessed from its recipe by MScheduler.countProcessors */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountProcessorsBenchmark
+	{
+	/** short: one command. pipeline: an aligner piped into samtools. quoted: awk programs with quotes and escapes.
+	 * long: a generated script of 200 lines with continuation lines */
+	@Param({"short","pipeline","quoted","long"})
+	public String recipe;
+	
+	private MScheduler scheduler;
+	private Task task;
+	
+	@Setup
+	public void setup()
+		{
+		this.scheduler = new SimulatedScheduler();
+		this.task = new Task("out.txt");
+		this.task.shellScriptLines.addAll(createRecipe(this.recipe));
+		}
+	
+	private static List<String> createRecipe(final String name)
+		{
+		if(name.equals("short"))
+			{
+			return Arrays.asList("touch out.txt");
+			}
+		else if(name.equals("pipeline"))
+			{
+			return Arrays.asList(
+				"bwa mem -t 4 -R '@RG\\tID:S1\\tSM:S1' ref.fa R1.fq.gz R2.fq.gz |\\",
+				"samtools view -u -b - | samtools sort -T out.tmp -o out.bam - && samtools index out.bam"
+				);
+			}
+		else if(name.equals("quoted"))
+			{
+			return Arrays.asList(
+				"awk -F '\\t' '($3==\"gene\" || $3==\"exon\") {print $1\";\"$4}' in.gff | sort -T . | uniq -c > out.txt",
+				"echo \"done; \\\"really\\\" | done\" >> out.log"
+				);
+			}
+		else if(name.equals("long"))
+			{
+			final List<String> lines = new ArrayList<>();
+			for(int i=0;i< 200;++i)
+				{
+				lines.add(i%3==0?
+					"gunzip -c chunk"+i+".gz | cut -f1,2 | sort -k1,1 -k2,2n |\\":
+					"bgzip -c > chunk"+i+".sorted.gz && tabix -p bed chunk"+i+".sorted.gz"
+					);
+				}
+			return lines;
+			}
+		throw new IllegalArgumentException(name);
+		}
+	
+	@Benchmark
+	public int countProcessors()
+		{
+		return this.scheduler.countProcessors(this.task.shellScriptLines);
+		}
+	
+	/** countProcessors, after looking for the '#MSUB -c' and '#$ -pe' annotations */
+	@Benchmark
+	public int getCores()
+		{
+		return this.scheduler.getCores(this.task);
+		}
+	}
@@ -0,0 +1,167 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.SecondaryCursor;
+
+/** finding the tasks whose prerequisites are all COMPLETED.
+ * checkPrerequisites reads the status of every prerequisite of every task TOBEDONE, the way 'run' did before the pending counters
+ * and the way 'build' still counts them. propagateCompleted walks the dependents of the jobs that just ended, the way each step does now */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadinessBenchmark
+	{
+	@Param({"10000","100000"})
+	public int size;
+	
+	private BenchmarkEnvironment env;
+	/** the tasks RUNNING, seen as just completed by propagateCompleted */
+	private final List<String> completedNames = new ArrayList<>();
+	
+	@Setup
+	public void setup() throws IOException
+		{
+		final List<Task> tasks = SyntheticGraph.create(this.size, SyntheticGraph.DEFAULT_FAN_IN, SyntheticGraph.DEFAULT_WINDOW, 0L);
+		for(final Task t: tasks)
+			{
+			if(t.targetStatus==TaskStatus.RUNNING) this.completedNames.add(t.getName());
+			}
+		this.env = new BenchmarkEnvironment(tasks);
+		}
+	
+	@TearDown
+	public void tearDown()
+		{
+		this.env.close();
+		}
+	
+	private Task getTask(final String targetName)
+		{
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		StringBinding.stringToEntry(targetName, key);
+		if(this.env.targetsDatabase.get(null, key, data, LockMode.DEFAULT)!=OperationStatus.SUCCESS)
+			{
+			throw new IllegalStateException("no "+targetName);
+			}
+		return this.env.taskBinding.entryToObject(data);
+		}
+	
+	/** returns the number of ready tasks */
+	@Benchmark
+	public int checkPrerequisites()
+		{
+		int n_ready = 0;
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry pKey = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		final DatabaseEntry definition = new DatabaseEntry();
+		Task.statusToEntry(TaskStatus.TOBEDONE, key);
+		final SecondaryCursor c = this.env.targetsByStatusDatabase.openCursor(null, null);
+		try {
+			OperationStatus status = c.getSearchKey(key, pKey, data, LockMode.DEFAULT);
+			while(status==OperationStatus.SUCCESS)
+				{
+				final Task t = this.env.taskBinding.entryToObject(data);
+				if(this.env.definitionsDatabase.get(null, pKey, definition, LockMode.DEFAULT)!=OperationStatus.SUCCESS)
+					{
+					throw new IllegalStateException("no definition of "+t);
+					}
+				Task.DefinitionBinding.readDefinition(definition, t);
+				boolean ready = true;
+				for(final String prereqName: t.getPrerequisites())
+					{
+					if(getTask(prereqName).targetStatus!=TaskStatus.COMPLETED)
+						{
+						ready = false;
+						break;
+						}
+					}
+				if(ready) n_ready++;
+				status = c.getNextDup(key, pKey, data, LockMode.DEFAULT);
+				}
+			}
+		finally
+			{
+			c.close();
+			}
+		return n_ready;
+		}
+	
+	/** returns the number of tasks that would become ready. Nothing is written */
+	@Benchmark
+	public int propagateCompleted()
+		{
+		int n_ready = 0;
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		final Cursor c = this.env.dependentsDatabase.openCursor(null, null);
+		try {
+			for(final String completedName: this.completedNames)
+				{
+				StringBinding.stringToEntry(completedName, key);
+				OperationStatus status = c.getSearchKey(key, data, LockMode.DEFAULT);
+				while(status==OperationStatus.SUCCESS)
+					{
+					final Task t = getTask(StringBinding.entryToString(data));
+					if(t.pendingPrerequisites==1 && t.targetStatus==TaskStatus.TOBEDONE) n_ready++;
+					status = c.getNextDup(key, data, LockMode.DEFAULT);
+					}
+				}
+			}
+		finally
+			{
+			c.close();
+			}
+		return n_ready;
+		}
+	}
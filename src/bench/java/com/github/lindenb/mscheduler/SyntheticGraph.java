@@ -0,0 +1,112 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** builds in memory the tasks of a random workflow for the benchmarks, without running make.
+ * The graph is shaped like the one of SyntheticMakefile: task i depends on up to 'fanIn' tasks chosen among the 'window' previous tasks.
+ * It is not the same graph: the names differ, a prerequisite drawn twice is kept once and the random numbers are not drawn in the same order.
+ * The recipes look like the ones of a NGS workflow. The first tasks are COMPLETED, a few are RUNNING, the others are TOBEDONE */
+class SyntheticGraph
+	{
+	static final int DEFAULT_FAN_IN = 3;
+	static final int DEFAULT_WINDOW = 1000;
+	
+	/** recipes as printed by make: $@ is the target, $< the first prerequisite, $^ all the prerequisites */
+	private static final String RECIPES[][] = new String[][]{
+		{"mkdir -p output && touch $@"},
+		{"#$ -pe smp 4","bwa mem -t 4 -R '@RG\\tID:S1\\tSM:S1' ref.fa $< | samtools view -u -b - | samtools sort -T $@.tmp -o $@ -","samtools index $@"},
+		{"gatk --java-options \"-Xmx4g\" HaplotypeCaller -R ref.fa -I $< -O $@ -ERC GVCF"},
+		{"awk -F '\\t' '($3==\"gene\" || $3==\"exon\") {print $1\";\"$4}' $^ | sort -T . | uniq -c > $@"},
+		{"#MSUB -c 2","bcftools concat -O u $^ | bcftools norm -f ref.fa -O z -o $@ && bcftools index $@"},
+		{"#PRIORITY 120","java -jar picard.jar MarkDuplicates I=$< O=$@ M=$@.metrics"}
+		};
+	
+	private SyntheticGraph()
+		{
+		}
+	
+	static String targetName(final int i)
+		{
+		return "output/S"+(i%97)+"/t"+i+".txt";
+		}
+	
+	/** returns the tasks in post-order: the prerequisites before the tasks depending on them */
+	static List<Task> create(final int n_targets,final int fanIn,final int window,final long seed)
+		{
+		final Random random = new Random(seed);
+		/* another generator, so the recipes and the statuses don't change the edges */
+		final Random recipeRandom = new Random(seed+1L);
+		final int n_completed = n_targets/2;
+		final int n_running = Math.max(1, n_targets/100);
+		final long now = System.currentTimeMillis();
+		final List<Task> tasks = new ArrayList<>(n_targets);
+		for(int i=0;i< n_targets;++i)
+			{
+			final Task t = new Task(targetName(i));
+			t.nodeId = i+1;
+			t.definitionLoaded = true;
+			final int n_prereqs = (i==0?0:random.nextInt(Math.min(i, fanIn)+1));
+			final StringBuilder prereqs = new StringBuilder();
+			for(int j=0;j< n_prereqs;++j)
+				{
+				final int p = i - 1 - random.nextInt(Math.min(i, window));
+				if(!t.getPrerequisites().add(targetName(p))) continue;
+				prereqs.append(" ").append(targetName(p));
+				if(tasks.get(p).targetStatus!=TaskStatus.COMPLETED) t.pendingPrerequisites++;
+				}
+			final String recipe[] = RECIPES[recipeRandom.nextInt(RECIPES.length)];
+			for(int j=0;j< recipe.length;++j)
+				{
+				t.shellScriptLines.add(recipe[j].replace("$@", t.getName()).
+						replace("$<", t.getPrerequisites().isEmpty()?"input.fq.gz":t.getPrerequisites().iterator().next()).
+						replace("$^", t.getPrerequisites().isEmpty()?"input.fq.gz":prereqs.toString().trim()));
+				}
+			t.cores = 1;
+			t.priority = recipeRandom.nextInt(10000);
+			if(i< n_completed)
+				{
+				t.targetStatus = TaskStatus.COMPLETED;
+				t.startMilliSec = now - 3600000L + i;
+				t.endMilliSec = t.startMilliSec + 1000L*recipeRandom.nextInt(600);
+				}
+			else if(i< n_completed+n_running && t.pendingPrerequisites==0)
+				{
+				t.targetStatus = TaskStatus.RUNNING;
+				t.startMilliSec = now - 1000L*recipeRandom.nextInt(600);
+				t.processId = String.valueOf(1000000+i);
+				t.shellScriptFile = new File("tmp.mscheduler."+i+".bash");
+				t.stdoutFile = new File("tmp.mscheduler."+i+".stdout");
+				t.stderrFile = new File("tmp.mscheduler."+i+".stderr");
+				}
+			tasks.add(t);
+			}
+		return tasks;
+		}
+	}
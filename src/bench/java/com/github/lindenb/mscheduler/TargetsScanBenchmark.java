@@ -0,0 +1,136 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.SecondaryCursor;
+
+/** full scans of the 'targets' database, as done by 'list', and of one status of the 'targetsByStatus' index, as done by each step */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TargetsScanBenchmark
+	{
+	@Param({"1000","10000","100000"})
+	public int size;
+	
+	private BenchmarkEnvironment env;
+	
+	@Setup
+	public void setup() throws IOException
+		{
+		this.env = new BenchmarkEnvironment(SyntheticGraph.create(this.size, SyntheticGraph.DEFAULT_FAN_IN, SyntheticGraph.DEFAULT_WINDOW, 0L));
+		}
+	
+	@TearDown
+	public void tearDown()
+		{
+		this.env.close();
+		}
+	
+	@Benchmark
+	public void scanTargets(final Blackhole blackhole)
+		{
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		final Cursor c = this.env.targetsDatabase.openCursor(null, null);
+		try {
+			while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS)
+				{
+				blackhole.consume(this.env.taskBinding.entryToObject(data).targetStatus);
+				}
+			}
+		finally
+			{
+			c.close();
+			}
+		}
+	
+	/** the keys only: the records are not read nor decoded */
+	@Benchmark
+	public void scanTargetNames(final Blackhole blackhole)
+		{
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		final Cursor c = this.env.targetsDatabase.openCursor(null, null);
+		try {
+			while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS)
+				{
+				blackhole.consume(key.getSize());
+				}
+			}
+		finally
+			{
+			c.close();
+			}
+		}
+	
+	/** the tasks TOBEDONE, half of the workflow */
+	@Benchmark
+	public void scanStatusIndex(final Blackhole blackhole)
+		{
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry pKey = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		Task.statusToEntry(TaskStatus.TOBEDONE, key);
+		final SecondaryCursor c = this.env.targetsByStatusDatabase.openCursor(null, null);
+		try {
+			OperationStatus status = c.getSearchKey(key, pKey, data, LockMode.DEFAULT);
+			while(status==OperationStatus.SUCCESS)
+				{
+				blackhole.consume(this.env.taskBinding.entryToObject(data));
+				status = c.getNextDup(key, pKey, data, LockMode.DEFAULT);
+				}
+			}
+		finally
+			{
+			c.close();
+			}
+		}
+	}
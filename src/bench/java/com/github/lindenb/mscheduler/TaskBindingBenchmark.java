@@ -0,0 +1,134 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sleepycat.je.DatabaseEntry;
+
+/** encoding and decoding of the records of the 'targets' and 'definitions' databases */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskBindingBenchmark
+	{
+	/** status of the encoded task, a RUNNING task has a processId and its files */
+	@Param({"TOBEDONE","RUNNING"})
+	public TaskStatus status;
+	
+	private Task.Binding binding;
+	private TaskView view;
+	private final Task.StatusKeyCreator keyCreator = new Task.StatusKeyCreator();
+	private Task task;
+	private final DatabaseEntry output = new DatabaseEntry();
+	private final DatabaseEntry record = new DatabaseEntry();
+	private final DatabaseEntry definition = new DatabaseEntry();
+	private final DatabaseEntry statusKey = new DatabaseEntry();
+	
+	@Setup
+	public void setup()
+		{
+		final File workingDirectory = new File(System.getProperty("java.io.tmpdir"));
+		this.binding = new Task.Binding(workingDirectory, workingDirectory);
+		this.view = new TaskView(this.binding);
+		for(final Task t: SyntheticGraph.create(1000, SyntheticGraph.DEFAULT_FAN_IN, SyntheticGraph.DEFAULT_WINDOW, 0L))
+			{
+			if(t.targetStatus==this.status && t.getPrerequisites().size()>1) this.task = t;
+			}
+		if(this.task==null) throw new IllegalStateException("no task "+this.status);
+		if(this.task.shellScriptFile!=null) this.task.shellScriptFile = new File(workingDirectory, this.task.shellScriptFile.getName());
+		this.binding.objectToEntry(this.task, this.record);
+		Task.DefinitionBinding.writeDefinition(this.task, this.definition);
+		}
+	
+	@Benchmark
+	public DatabaseEntry encodeTask()
+		{
+		this.binding.objectToEntry(this.task, this.output);
+		return this.output;
+		}
+	
+	@Benchmark
+	public Task decodeTask()
+		{
+		return this.binding.entryToObject(this.record);
+		}
+	
+	/** what the scheduler loop reads for a ready task */
+	@Benchmark
+	public int viewStatusAndPending()
+		{
+		this.view.wrap(this.record);
+		return this.view.getStatus().ordinal() + this.view.getPendingPrerequisites();
+		}
+	
+	/** what 'propagateCompleted' does to a dependent before saving it */
+	@Benchmark
+	public DatabaseEntry viewUpdatePending()
+		{
+		this.view.wrap(this.record);
+		this.view.setPendingPrerequisites(this.view.getPendingPrerequisites() ^ 1);
+		return this.view.getEntry();
+		}
+	
+	/** what the 'targetsByStatus' index does for each update of a task */
+	@Benchmark
+	public boolean createStatusKey()
+		{
+		return this.keyCreator.createSecondaryKey(null, null, this.record, this.statusKey);
+		}
+	
+	@Benchmark
+	public DatabaseEntry encodeDefinition()
+		{
+		Task.DefinitionBinding.writeDefinition(this.task, this.output);
+		return this.output;
+		}
+	
+	@Benchmark
+	public List<String> decodeDefinition()
+		{
+		final Task t = new Task(this.task.getName());
+		Task.DefinitionBinding.readDefinition(this.definition, t);
+		return t.shellScriptLines;
+		}
+	}
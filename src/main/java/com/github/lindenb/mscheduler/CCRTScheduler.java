@@ -32,7 +32,11 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.slf4j.LoggerFactory;
@@ -44,16 +48,31 @@ import com.github.lindenb.mscheduler.io.StreamBoozer;
 public class CCRTScheduler extends MScheduler {
 	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(CCRTScheduler.class);
 
+	/** the job states of sacct */
 	private enum JobStatus
 		{
+		BOOT_FAIL,
 		CONFIGURING,
 		CANCELLED,
 		COMPLETED,
+		COMPLETING,
+		DEADLINE,
 		FAILED,
 		RUNNING,
 		NODE_FAIL,
+		OUT_OF_MEMORY,
 		PENDING,
 		PREEMPTED,
+		REQUEUED,
+		REQUEUE_FED,
+		REQUEUE_HOLD,
+		RESIZING,
+		RESV_DEL_HOLD,
+		REVOKED,
+		SIGNALING,
+		SPECIAL_EXIT,
+		STAGE_OUT,
+		STOPPED,
 		SUSPENDED,
 		TIMEOUT
 		}
@@ -97,7 +116,6 @@ JobID|JobName|Partition|Account|AllocCPUS|State|ExitCode|
 				sb = new StreamBoozer(proc.getErrorStream(),System.err,"[sacct]");
 				sb.start();
 				in =new BufferedReader(new InputStreamReader(proc.getInputStream()));
-				JobStatus newStatus = JobStatus.RUNNING;
 				String line;
 				while((line=in.readLine())!=null )
 					{
@@ -114,47 +132,8 @@ JobID|JobName|Partition|Account|AllocCPUS|State|ExitCode|
 						{
 						continue;
 						}
-					if( tokens[5].startsWith("CANCELLED "))
-						{
-						LOG.debug(tokens[5]+" for JOB ID. "+super.task.processId);
-						tokens[5] = "CANCELLED";
-						}
-					try
-						{
-						newStatus = JobStatus.valueOf(tokens[5]);
-						
-						switch(newStatus)
-							{
-							case PENDING:
-							case SUSPENDED:
-							case CONFIGURING: 
-							case RUNNING:
-								{
-								break;
-								}
-							case TIMEOUT: 
-							case CANCELLED:
-							case FAILED:
-							case NODE_FAIL:
-								{
-								LOG.info("job failed");
-								super.task.targetStatus = TaskStatus.ERROR;
-								break;
-								}
-							case COMPLETED: 
-								{
-								LOG.info("job completed");
-								super.task.targetStatus = TaskStatus.COMPLETED;
-								}
-							default: throw new IllegalStateException(task+" "+newStatus);
-							}
-						}
-					catch(Exception err2)
-						{
-						LOG.error("boum",err2);
-						LOG.error("Bad JobStatus: \""+tokens[5]+"\"  for JOBID."+ super.task);
-						return -1;
-						}
+					/* an unknown state leaves the task RUNNING, it is checked again by the next step */
+					applyJobStatus(super.task, tokens[5]);
 					break;
 					}
 				IoUtils.close(in);
@@ -179,11 +158,179 @@ JobID|JobName|Partition|Account|AllocCPUS|State|ExitCode|
 			}
 		}
 
+	/** update task.targetStatus from a sacct 'State' column. Returns false if the state is unknown,
+	 * task.targetStatus is then unchanged */
+	private boolean applyJobStatus(final Task task,String state)
+		{
+		if( state.startsWith("CANCELLED "))
+			{
+			LOG.debug(state+" for JOB ID. "+task.processId);
+			state = "CANCELLED";
+			}
+		try
+			{
+			final JobStatus newStatus = JobStatus.valueOf(state);
+			
+			switch(newStatus)
+				{
+				case PENDING:
+				case SUSPENDED:
+				case CONFIGURING: 
+				case RUNNING:
+				case COMPLETING:
+				case REQUEUED:
+				case REQUEUE_FED:
+				case REQUEUE_HOLD:
+				case RESIZING:
+				case RESV_DEL_HOLD:
+				case SIGNALING:
+				case STAGE_OUT:
+				case STOPPED:
+					{
+					break;
+					}
+				case TIMEOUT: 
+				case CANCELLED:
+				case FAILED:
+				case NODE_FAIL:
+				case BOOT_FAIL:
+				case DEADLINE:
+				case OUT_OF_MEMORY:
+				case PREEMPTED:
+				case REVOKED:
+				case SPECIAL_EXIT:
+					{
+					LOG.info("job failed "+task);
+					task.targetStatus = TaskStatus.ERROR;
+					break;
+					}
+				case COMPLETED: 
+					{
+					LOG.info("job completed "+task);
+					task.targetStatus = TaskStatus.COMPLETED;
+					break;
+					}
+				default: throw new IllegalStateException(task+" "+newStatus);
+				}
+			return true;
+			}
+		catch(final IllegalArgumentException err2)
+			{
+			LOG.warn("Unknown JobStatus: \""+state+"\"  for JOBID."+ task);
+			return false;
+			}
+		}
+	
+	/** A BulkStatusChecker calling sacct for many jobs at once 
+	 * example output:
+<pre>
+$ sacct -n -p -X --format=JobID,State,ExitCode -j 3930550,3930551
+3930550|COMPLETED|0:0|
+3930551|RUNNING|0:0|
+</pre>
+	 * */
+	private class BulkSacctCall extends BulkStatusChecker
+		{
+		/** max number of job IDs per call of sacct */
+		private static final int CHUNK_SIZE = 500;
+		
+		BulkSacctCall(final List<Task> tasks)
+			{
+			super(tasks);
+			}
+		
+		@Override
+		public Integer call() throws Exception
+			{
+			final Pattern delimPipes = Pattern.compile("[\\|]");
+			/* job ID -> tasks */
+			final Map<String,List<Task>> id2tasks = new LinkedHashMap<>();
+			for(final Task task: super.tasks)
+				{
+				List<Task> L = id2tasks.get(task.processId);
+				if(L==null) {
+					L = new ArrayList<>();
+					id2tasks.put(task.processId, L);
+					}
+				L.add(task);
+				}
+			final List<String> jobIds = new ArrayList<>(id2tasks.keySet());
+			/* job IDs returned by sacct */
+			final Set<String> found = new HashSet<>(jobIds.size());
+			for(int i=0;i< jobIds.size();i+=CHUNK_SIZE)
+				{
+				StreamBoozer sb = null;
+				BufferedReader in=null;
+				try
+					{
+					final List<String> cmdargs= new ArrayList<>();
+					cmdargs.add("sacct");
+					cmdargs.add("-n");
+					cmdargs.add("-p");
+					cmdargs.add("-X");
+					cmdargs.add("--format=JobID,State,ExitCode");
+					cmdargs.add("-j");
+					cmdargs.add(String.join(",", jobIds.subList(i, Math.min(i+CHUNK_SIZE,jobIds.size()))));
+					final ProcessBuilder procbuilder= new ProcessBuilder(cmdargs);
+					procbuilder.directory(getWorkingDirectory());
+					final Process proc = procbuilder.start();
+					sb = new StreamBoozer(proc.getErrorStream(),System.err,"[sacct]");
+					sb.start();
+					in =new BufferedReader(new InputStreamReader(proc.getInputStream()));
+					String line;
+					while((line=in.readLine())!=null )
+						{
+						if(line.trim().isEmpty()) continue;
+						final String tokens[]=delimPipes.split(line);
+						if(tokens.length<3)
+							{
+							LOG.error("expected 3 tokens in "+line);
+							return -1;
+							}
+						final List<Task> L = id2tasks.get(tokens[0]);
+						/* ignore job steps like '3930550.batch' */
+						if(L==null) continue;
+						found.add(tokens[0]);
+						for(final Task task: L)
+							{
+							/* checked again one by one */
+							if(!applyJobStatus(task, tokens[1])) super.unresolved.add(task);
+							}
+						}
+					IoUtils.close(in);
+					final int return_status = proc.waitFor();
+					if(return_status!=0)
+						{
+						LOG.error("process sacct failed");
+						return return_status;
+						}
+					}
+				finally
+					{
+					IoUtils.close(in);
+					IoUtils.close(sb);
+					}
+				}
+			for(final String jobId: jobIds)
+				{
+				if(found.contains(jobId)) continue;
+				LOG.info("job "+jobId+" not found by sacct");
+				super.unresolved.addAll(id2tasks.get(jobId));
+				}
+			return 0;
+			}
+		}
+
 	@Override
 	protected StatusChecker createStatusChecker(final Task task) {
 		return new SacctCall(task);
 		}
 	
+	@Override
+	protected BulkStatusChecker createBulkStatusChecker(final List<Task> tasks) {
+		return new BulkSacctCall(tasks);
+		}
+	
 	@Override
 	protected void kill(final Task t) throws IOException {
 		Runtime.getRuntime().exec("ccc_mdel "+t.processId);		
@@ -268,6 +415,7 @@ JobID|JobName|Partition|Account|AllocCPUS|State|ExitCode|
 			}
 		fw.println("# Date "+new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
 		fw.println("set -euf");
+		printExitCodeTrap(fw, t);
 		fw.println("cd '"+getBaseDirectory().getAbsolutePath()+"'");
 		
 			
@@ -0,0 +1,340 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.LoggerFactory;
+
+/** Append-only journal of the status changes of the tasks, in the working directory.
+ * It is written by the commands changing the status of the tasks and keeps their history after the records of 'targets' are overwritten.
+ * 'build' writes a snapshot of all the tasks, so 'list' and 'eow' can read the status of the tasks
+ * from the snapshot and the changes written after it, without opening the BerkeleyDB environment.
+ * 
+ * journal.bin:
+ * <ul>
+ *  <li>header: int MAGIC, long: length of the complete records, the bytes after it are ignored and overwritten</li>
+ *  <li>records: long time in milliseconds, byte previous status, byte new status (see Task.Binding.statusToCode),
+ *   short length of the UTF-8 name, name, short length of the UTF-8 processId (-1 if null), processId</li>
+ * </ul>
+ * journal.snapshot: int SNAPSHOT_MAGIC, long offset of the first record of journal.bin not in the snapshot, then for each task
+ * byte 1, byte status, UTF name, boolean hasProcessId, [UTF processId]. The last byte is 0.
+ */
+class Journal
+	{
+	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(Journal.class);
+	static final String JOURNAL_FILE = "journal.bin";
+	static final String SNAPSHOT_FILE = "journal.snapshot";
+	private static final int MAGIC = 0x4D534A31;//MSJ1
+	private static final int SNAPSHOT_MAGIC = 0x4D535331;//MSS1
+	private static final int HEADER_SIZE = 4 + 8;
+	/** size of a record without its name and its processId */
+	private static final int RECORD_SIZE = 8 + 1 + 1 + 2 + 2;
+	private static final int BUFFER_SIZE = 1<<16;
+	
+	private Journal()
+		{
+		}
+	
+	/** the status of a task, as found in the snapshot and the journal */
+	static class Entry
+		{
+		final String name;
+		TaskStatus status;
+		String processId;
+		/** time of the last change, or -1 if the task didn't change since the snapshot */
+		long millis = -1L;
+		Entry(final String name,final TaskStatus status,final String processId)
+			{
+			this.name = name;
+			this.status = status;
+			this.processId = processId;
+			}
+		}
+	
+	/** appends the records in a buffer, written in the journal when the buffer is full and when the writer is closed */
+	static class Writer implements Closeable
+		{
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		/** length of the complete records in the file */
+		private long committed;
+		
+		Writer(final File directory) throws IOException
+			{
+			this.channel = FileChannel.open(new File(directory, JOURNAL_FILE).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if(this.channel.size() < HEADER_SIZE)
+				{
+				this.committed = HEADER_SIZE;
+				header.putInt(MAGIC).putLong(this.committed).flip();
+				writeFully(header, 0L);
+				}
+			else
+				{
+				readFully(this.channel, header, 0L);
+				header.flip();
+				if(header.getInt()!=MAGIC) throw new IOException("not a journal "+directory+"/"+JOURNAL_FILE);
+				this.committed = header.getLong();
+				/* a record that was not complete when a previous command stopped */
+				if(this.channel.size() > this.committed) this.channel.truncate(this.committed);
+				}
+			}
+		
+		private void writeFully(final ByteBuffer buf,long position) throws IOException
+			{
+			while(buf.hasRemaining())
+				{
+				position += this.channel.write(buf, position);
+				}
+			}
+		
+		/** record the change of status of a task from 'previous' to its current status */
+		void append(final Task task,final TaskStatus previous) throws IOException
+			{
+			append(task.getName(), task.processId, previous, task.targetStatus);
+			}
+		
+		/** record the change of status of the task 'name' from 'previous' to 'status' */
+		void append(final String name,final String processId,final TaskStatus previous,final TaskStatus status) throws IOException
+			{
+			final byte nameBytes[] = name.getBytes(StandardCharsets.UTF_8);
+			if(nameBytes.length > Short.MAX_VALUE) throw new IOException("name too long for the journal "+name);
+			final byte pid[] = (processId==null?null:processId.getBytes(StandardCharsets.UTF_8));
+			final int pidLength = (pid==null?0:Math.min(pid.length, Short.MAX_VALUE));
+			if(this.buffer.remaining() < RECORD_SIZE + nameBytes.length + pidLength) flush();
+			this.buffer.putLong(System.currentTimeMillis());
+			this.buffer.put(Task.Binding.statusToCode(previous));
+			this.buffer.put(Task.Binding.statusToCode(status));
+			this.buffer.putShort((short)nameBytes.length);
+			this.buffer.put(nameBytes);
+			this.buffer.putShort((short)(pid==null?-1:pidLength));
+			if(pid!=null) this.buffer.put(pid, 0, pidLength);
+			}
+		
+		/** write the buffer, then the length of the complete records in the header */
+		void flush() throws IOException
+			{
+			if(this.buffer.position()==0) return;
+			this.buffer.flip();
+			final int n = this.buffer.remaining();
+			writeFully(this.buffer, this.committed);
+			this.buffer.clear();
+			this.committed += n;
+			final ByteBuffer length = ByteBuffer.allocate(8);
+			length.putLong(this.committed).flip();
+			writeFully(length, 4L);
+			}
+		
+		/** flush the buffer and returns the length of the journal */
+		long getLength() throws IOException
+			{
+			flush();
+			return this.committed;
+			}
+		
+		@Override
+		public void close() throws IOException
+			{
+			try {
+				flush();
+				this.channel.force(false);
+				}
+			finally
+				{
+				this.channel.close();
+				}
+			}
+		}
+	
+	private static void readFully(final FileChannel channel,final ByteBuffer buf,long position) throws IOException
+		{
+		while(buf.hasRemaining())
+			{
+			final int n = channel.read(buf, position);
+			if(n<0) throw new IOException("unexpected end of journal");
+			position += n;
+			}
+		}
+	
+	/** writes the snapshot of the tasks, the changes after 'journalLength' in the journal are not in the snapshot.
+	 * The file is replaced once complete */
+	static class SnapshotWriter implements Closeable
+		{
+		private final File file;
+		private final File tmpFile;
+		private final DataOutputStream out;
+		private boolean done = false;
+		
+		SnapshotWriter(final File directory,final long journalLength) throws IOException
+			{
+			this.file = new File(directory, SNAPSHOT_FILE);
+			this.tmpFile = new File(directory, SNAPSHOT_FILE+".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.tmpFile), BUFFER_SIZE));
+			this.out.writeInt(SNAPSHOT_MAGIC);
+			this.out.writeLong(journalLength);
+			}
+		
+		void add(final Task task) throws IOException
+			{
+			this.out.writeByte(1);
+			this.out.writeByte(Task.Binding.statusToCode(task.targetStatus));
+			this.out.writeUTF(task.getName());
+			this.out.writeBoolean(task.processId!=null);
+			if(task.processId!=null) this.out.writeUTF(task.processId);
+			}
+		
+		/** the snapshot is complete */
+		void commit() throws IOException
+			{
+			this.out.writeByte(0);
+			this.out.close();
+			Files.move(this.tmpFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			this.done = true;
+			}
+		
+		@Override
+		public void close() throws IOException
+			{
+			if(this.done) return;
+			this.out.close();
+			this.tmpFile.delete();
+			}
+		}
+	
+	/** returns the status of the tasks from the snapshot and the changes written after it, by name, in the order of the snapshot */
+	static Map<String,Entry> replay(final File directory) throws IOException
+		{
+		final File snapshotFile = new File(directory, SNAPSHOT_FILE);
+		if(!snapshotFile.exists()) throw new IOException("no snapshot "+snapshotFile+". It is written by 'build'");
+		final Map<String,Entry> entries = new LinkedHashMap<>();
+		final long offset;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), BUFFER_SIZE));
+		try {
+			if(in.readInt()!=SNAPSHOT_MAGIC) throw new IOException("not a snapshot "+snapshotFile);
+			offset = in.readLong();
+			while(in.readByte()==1)
+				{
+				final TaskStatus status = Task.Binding.codeToStatus(in.readByte());
+				final String name = in.readUTF();
+				final String processId = (in.readBoolean()?in.readUTF():null);
+				if(entries.put(name, new Entry(name, status, processId))!=null)
+					{
+					LOG.warn("duplicate task "+name+" in "+snapshotFile);
+					}
+				}
+			}
+		finally
+			{
+			in.close();
+			}
+		
+		final File journalFile = new File(directory, JOURNAL_FILE);
+		if(!journalFile.exists()) return entries;
+		final FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ);
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header, 0L);
+			header.flip();
+			if(header.getInt()!=MAGIC) throw new IOException("not a journal "+journalFile);
+			final long committed = header.getLong();
+			long position = Math.max(offset, HEADER_SIZE);
+			long n_records = 0L;
+			while(position < committed)
+				{
+				/* a record is never split: map the journal by windows starting at a record */
+				final long windowSize = Math.min(committed - position, Integer.MAX_VALUE);
+				final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+				while(buf.remaining() >= RECORD_SIZE)
+					{
+					final int start = buf.position();
+					final long millis = buf.getLong();
+					buf.get();//previous status
+					final TaskStatus status = Task.Binding.codeToStatus(buf.get());
+					final int nameLength = buf.getShort();
+					if(nameLength + 2 > buf.remaining())
+						{
+						buf.position(start);
+						break;
+						}
+					final byte nameBytes[] = new byte[nameLength];
+					buf.get(nameBytes);
+					final String name = new String(nameBytes, StandardCharsets.UTF_8);
+					final int pidLength = buf.getShort();
+					if(pidLength > buf.remaining())
+						{
+						buf.position(start);
+						break;
+						}
+					String processId = null;
+					if(pidLength>=0)
+						{
+						final byte pid[] = new byte[pidLength];
+						buf.get(pid);
+						processId = new String(pid, StandardCharsets.UTF_8);
+						}
+					final Entry e = entries.get(name);
+					if(e==null)
+						{
+						LOG.warn("task "+name+" is not in the snapshot");
+						}
+					else
+						{
+						e.status = status;
+						e.processId = processId;
+						e.millis = millis;
+						}
+					n_records++;
+					}
+				if(buf.position()==0) throw new IOException("corrupted journal "+journalFile+" at "+position);
+				position += buf.position();
+				}
+			LOG.info("replayed "+n_records+" change(s) on "+entries.size()+" task(s)");
+			return entries;
+			}
+		finally
+			{
+			channel.close();
+			}
+		}
+	}
@@ -0,0 +1,169 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.util.Optional;
+
+import org.slf4j.LoggerFactory;
+
+import com.github.lindenb.mscheduler.io.IoUtils;
+
+/** runs the jobs on the current machine. A job is a bash process that survives the scheduler,
+ * its processId is the PID. By default the running jobs use at most the cores of the machine, see --cores */
+public class LocalScheduler extends MScheduler {
+	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(LocalScheduler.class);
+
+private LocalScheduler() {
+	
+}
+
+/** returns the process of a task or null if it is not running anymore */
+private static ProcessHandle getProcess(final Task task) {
+	if(task.processId==null) return null;
+	final Optional<ProcessHandle> process;
+	try {
+		process = ProcessHandle.of(Long.parseLong(task.processId));
+		}
+	catch(final NumberFormatException err) {
+		LOG.warn("bad process id for "+task);
+		return null;
+		}
+	if(!process.isPresent() || !process.get().isAlive()) return null;
+	/* the PID may have been reused by a process started after the job */
+	final Optional<Instant> start = process.get().info().startInstant();
+	if(start.isPresent() && task.startMilliSec>0L && start.get().toEpochMilli() > task.startMilliSec + 5000L) {
+		return null;
+		}
+	return process.get();
+	}
+
+private class LocalStatusChecker extends StatusChecker
+	{
+	LocalStatusChecker(final Task task) {
+		super(task);
+		}
+	@Override
+	public Integer call() throws Exception {
+		if(getProcess(super.task)!=null) {
+			super.task.targetStatus = TaskStatus.RUNNING;
+			return 0;
+			}
+		/* the exit code file is written before the process exits */
+		final Integer exitCode = readExitCode(super.task);
+		if(exitCode==null) {
+			LOG.info("job "+super.task+" exited without exit code");
+			super.task.targetStatus = TaskStatus.ERROR;
+			}
+		else
+			{
+			super.task.targetStatus = (exitCode.intValue()==0?TaskStatus.COMPLETED:TaskStatus.ERROR);
+			}
+		return 0;
+		}
+	}
+
+@Override
+protected StatusChecker createStatusChecker(final Task task) {
+	return new LocalStatusChecker(task);
+	}
+
+/** checking a process is cheap: the jobs that died without exit code are found at each step */
+@Override
+protected long getDefaultPollInterval() {
+	return 0L;
+	}
+
+@Override
+protected int getDefaultCoreBudget() {
+	return Runtime.getRuntime().availableProcessors();
+	}
+
+@Override
+protected void kill(final Task t) throws IOException {
+	LOG.info("killing "+t);
+	final ProcessHandle process = getProcess(t);
+	if(process==null) return;
+	process.descendants().forEach(ProcessHandle::destroy);
+	process.destroy();
+	}
+
+@Override
+protected int submitJob(final Task task) {
+	LOG.info("Submitting "+task);
+	PrintWriter pw = null;
+	try {
+		task.shellScriptFile = File.createTempFile("tmp.", ".bash",getWorkingDirectory());
+		task.stdoutFile = File.createTempFile("tmp.", "."+task.nodeId+".stdout",getWorkingDirectory());
+		task.stderrFile = File.createTempFile("tmp.", "."+task.nodeId+".stderr",getWorkingDirectory());
+		pw = new PrintWriter(task.shellScriptFile);
+		pw.println("#!/bin/bash");
+		printExitCodeTrap(pw, task);
+		pw.println("cd '"+super.getBaseDirectory()+"' ;");
+		for(final String s:task.shellScriptLines) {
+			pw.println(s);
+			}
+		pw.flush();
+		if(pw.checkError()) throw new IOException("Boum");
+		pw.close();
+		pw=null;
+		
+		makeExecutable(task.shellScriptFile);
+		
+		final ProcessBuilder procbuilder= new ProcessBuilder("bash", task.shellScriptFile.getPath());
+		procbuilder.directory(getBaseDirectory());
+		procbuilder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+		procbuilder.redirectOutput(task.stdoutFile);
+		procbuilder.redirectError(task.stderrFile);
+		final Process proc = procbuilder.start();
+		task.processId = String.valueOf(proc.pid());
+		/* 'watch' doesn't wait for the next step */
+		proc.onExit().thenRun(new Runnable() {
+			@Override
+			public void run() {
+				notifyJobExit();
+				}
+			});
+		LOG.info("OK process ID =" + task.processId );
+		
+		task.startMilliSec = System.currentTimeMillis();
+		task.targetStatus = TaskStatus.RUNNING;
+		return 0;
+	} catch (final Exception e) {
+		LOG.error("boum", e);
+		return -1;	
+	} finally {
+		IoUtils.close(pw);
+	}
+	}
+
+
+public static void main(String[] args) {
+	new LocalScheduler().instanceMainWithExit(args);
+	}
+}
@@ -25,18 +25,43 @@ SOFTWARE.
 package com.github.lindenb.mscheduler;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -50,15 +75,24 @@ import com.github.lindenb.j4make.Graph;
 import com.github.lindenb.j4make.Target;
 import com.github.lindenb.mscheduler.io.IoUtils;
 import com.github.lindenb.mscheduler.io.StreamBoozer;
+import com.sleepycat.bind.tuple.LongBinding;
 import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.CheckpointConfig;
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
+import com.sleepycat.je.SecondaryConfig;
+import com.sleepycat.je.SecondaryCursor;
+import com.sleepycat.je.SecondaryDatabase;
 import com.sleepycat.je.Transaction;
 
 
@@ -70,14 +104,111 @@ public abstract class MScheduler {
 	private static final String OPTION_MAKE_EXECUTABLE="make";
 	private static final String OPTION_RESETFAILURE="r";
 	private static final String OPTION_N_JOBS="j";
+	private static final String OPTION_STATUS_THREADS="status-threads";
+	private static final String OPTION_STATUS_TIMEOUT="status-timeout";
+	private static final String OPTION_MIN_INTERVAL="min-interval";
+	private static final String OPTION_POLL_INTERVAL="poll-interval";
+	private static final String OPTION_BULK_LOAD="bulk";
+	private static final String OPTION_STREAM="stream";
+	private static final String OPTION_HISTORY="history";
+	private static final String OPTION_CORES="cores";
+	private static final String OPTION_FUSE="fuse";
+	private static final String OPTION_FUSE_MAX_LENGTH="fuse-max-length";
+	private static final String OPTION_FUSE_MAX_SECONDS="fuse-max-seconds";
+	/** number of ready tasks considered when packing the jobs in the cores, see --cores */
+	private static final int CORES_WINDOW = 256;
+	private static final Pattern MSUB_CORES = Pattern.compile("#MSUB\\s+-c\\s+(\\d+).*");
+	private static final Pattern SGE_PE_CORES = Pattern.compile("#\\$\\s+-pe\\s+\\S+\\s+(\\d+).*");
+	private static final String OPTION_MAX_INTERVAL="max-interval";
+	private static final String OPTION_JOURNAL="journal";
+	private static final String OPTION_LIST_STATUS="status";
+	private static final String OPTION_LIST_NAME="name";
+	private static final String OPTION_LIST_PREREQUISITE_OF="prerequisite-of";
+	private static final String OPTION_LIST_FORMAT="format";
+	private static final String OPTION_LIST_SUMMARY="summary";
+	private static final String OPTION_UP_TO_DATE="up-to-date";
+	private static final String OPTION_STAT_THREADS="stat-threads";
 	private static final String BASEDIRKEY="base.directory";
+	private static final String LASTPOLLKEY="last.cluster.poll";
+	private static final String HISTORYKEY="history.directory";
+	/** suffix of the files containing the exit code of a job */
+	private static final String EXIT_CODE_SUFFIX=".exit";
+	/** metrics of the last command, in the working directory, see Metrics */
+	private static final String METRICS_FILE="metrics.prom";
+	private static final String BDB_METRIC="mscheduler_bdb_seconds";
+	private static final String BDB_HELP="time of the BerkeleyDB operations: get, put, delete or a whole cursor walk";
 	private Options options = new Options();
 	private CommandLine cmdLine = null;
 	private Environment environment = null;
+	/** mutable state of the tasks, see Task.Binding */
 	private Database targetsDatabase = null;
+	/** immutable recipe and prerequisites of the tasks, written by 'build', see Task.DefinitionBinding */
+	private Database definitionsDatabase = null;
+	/** secondary index of 'targets' keyed by TaskStatus */
+	private SecondaryDatabase targetsByStatusDatabase = null;
+	/** reverse dependencies: key is a prerequisite name, values are the targets depending on it */
+	private Database dependentsDatabase = null;
+	/** TOBEDONE targets whose prerequisites are all COMPLETED */
+	private Database readyDatabase = null;
 	private Database metaDatabase = null;
+	/** status changes of the tasks, open when the environment is writable */
+	private Journal.Writer journal = null;
 	private File workingDirectory = null;
 	private File baseDir = null;
+	/** true when 'build' loads a large graph: deferred write databases and no background cleaner/checkpointer */
+	private boolean bulkLoad = false;
+	/** max number of cores used by the RUNNING tasks, or -1 */
+	private int coreBudget = -1;
+	/** max number of cheap tasks run by the same job, see --fuse */
+	private int fuseSize = 0;
+	/** max length of the recipe of a cheap task */
+	private int fuseMaxLength = 200;
+	/** max mean duration of a cheap task */
+	private double fuseMaxSeconds = 10.0;
+	/** shared pool running the StatusCheckers */
+	private ExecutorService statusExecutor = null;
+	/** durations of the tasks, see getHistory */
+	private RuntimeHistory history = null;
+	private boolean historyOpened = false;
+	/** modification times of the files, only set with --up-to-date */
+	private StatCache statCache = null;
+	/** number of threads reading the modification times, see --stat-threads */
+	private int statThreads = 32;
+	/** set when a job started by this process has exited, see notifyJobExit */
+	private final AtomicBoolean jobExited = new AtomicBoolean(false);
+	/** time spent in the steps of 'run' or 'watch', nanoseconds */
+	private long stepNanos = 0L;
+	/** max number of concurrent StatusCheckers */
+	private int statusThreads = 8;
+	/** max number of seconds for one StatusChecker */
+	private long statusTimeoutSeconds = 10L;
+	/** min number of seconds between two queries of the cluster for jobs without exit code file */
+	private long pollIntervalSeconds = -1L;
+	private final Metrics metrics = new Metrics();
+	private final Metrics.Histogram getTargetTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","targets","op","get");
+	private final Metrics.Histogram putTargetTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","targets","op","put");
+	private final Metrics.Histogram scanTargetsTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","targets","op","cursor");
+	private final Metrics.Histogram getByStatusTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","targetsByStatus","op","get");
+	private final Metrics.Histogram scanByStatusTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","targetsByStatus","op","cursor");
+	private final Metrics.Histogram getDefinitionTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","definitions","op","get");
+	private final Metrics.Histogram putDefinitionTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","definitions","op","put");
+	private final Metrics.Histogram putDependentTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","dependents","op","put");
+	private final Metrics.Histogram scanDependentsTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","dependents","op","cursor");
+	private final Metrics.Histogram putReadyTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","readyByPriority","op","put");
+	private final Metrics.Histogram deleteReadyTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","readyByPriority","op","delete");
+	private final Metrics.Histogram scanReadyTime = this.metrics.histogram(BDB_METRIC, BDB_HELP, "db","readyByPriority","op","cursor");
+	private final Metrics.Histogram statusCheckTime = this.metrics.histogram("mscheduler_status_check_seconds",
+			"time of a StatusChecker (one job) or of a BulkStatusChecker (all the jobs)", "kind","single");
+	private final Metrics.Histogram bulkStatusCheckTime = this.metrics.histogram("mscheduler_status_check_seconds",
+			"time of a StatusChecker (one job) or of a BulkStatusChecker (all the jobs)", "kind","bulk");
+	private final Metrics.Counter statusTimeouts = this.metrics.counter("mscheduler_status_check_timeouts_total",
+			"status checks that did not answer in time, see --"+OPTION_STATUS_TIMEOUT);
+	private final Metrics.Histogram statTime = this.metrics.histogram("mscheduler_stat_seconds",
+			"time to read the modification time of a file, see --"+OPTION_UP_TO_DATE);
+	private final Metrics.Counter upToDateTasks = this.metrics.counter("mscheduler_up_to_date_tasks_total",
+			"tasks marked COMPLETED without running because their file is newer than their prerequisites");
+	private final Metrics.Histogram stepTime = this.metrics.histogram("mscheduler_step_seconds",
+			"time of a step of 'run' or 'watch'");
 
 	
 protected MScheduler() {
@@ -132,6 +263,55 @@ private File getStopFile() {
 	return new File(this.workingDirectory,"STOP");
 }
 
+/** returns the time spent checking and submitting the jobs by 'run' or 'watch', in nanoseconds */
+protected long getStepNanos() {
+	return this.stepNanos;
+}
+
+/** called by the schedulers running the jobs in this process when a job has exited: 'watch' runs the next step */
+protected void notifyJobExit() {
+	this.jobExited.set(true);
+}
+
+/** returns true if the scripts generated by submitJob write an exit code file, see printExitCodeTrap */
+protected boolean hasExitCodeFiles() {
+	return true;
+}
+
+/** get the file where the script of this task writes its exit code. null if the task has no script */
+protected File getExitCodeFile(final Task task) {
+	if(task.shellScriptFile==null) return null;
+	return new File(task.shellScriptFile.getParentFile(),task.shellScriptFile.getName()+EXIT_CODE_SUFFIX);
+}
+
+/** print a bash trap writing the exit code of the script in getExitCodeFile when the script exits.
+ * The file is written under a temporary name and then renamed, so it is never seen half-written */
+protected void printExitCodeTrap(final PrintWriter pw,final Task task) {
+	final File exitFile = getExitCodeFile(task);
+	final String tmpPath = exitFile.getPath()+".tmp";
+	pw.println("trap 'echo $? > \""+tmpPath+"\" && mv \""+tmpPath+"\" \""+exitFile.getPath()+"\"' EXIT");
+}
+
+/** read the exit code written by the script of this task. returns null if the file doesn't exist (yet) */
+protected Integer readExitCode(final Task task) {
+	final File exitFile = getExitCodeFile(task);
+	if(exitFile==null || !exitFile.exists()) return null;
+	BufferedReader in = null;
+	try {
+		in = new BufferedReader(new FileReader(exitFile));
+		final String line = in.readLine();
+		if(line==null) return null;
+		return Integer.parseInt(line.trim());
+		}
+	catch(final Exception err) {
+		LOG.warn("cannot read exit code in "+exitFile,err);
+		return null;
+		}
+	finally {
+		IoUtils.close(in);
+		}
+}
+
 
 /** open bdb env */
 private int openEnvironement(
@@ -163,16 +343,62 @@ private int openEnvironement(
 		envCfg.setReadOnly(readOnly);
 		envCfg.setConfigParam(EnvironmentConfig.LOG_FILE_MAX,"500000000");
 		envCfg.setTransactional(false);
+		if(this.bulkLoad) {
+			LOG.info("bulk load: no cleaner, no checkpointer, larger cache");
+			envCfg.setCachePercent(80);
+			envCfg.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER,"false");
+			envCfg.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER,"false");
+			envCfg.setConfigParam(EnvironmentConfig.LOG_TOTAL_BUFFER_BYTES,"67108864");
+			}
 		this.environment = new Environment(this.workingDirectory, envCfg);
+		if(!allowCreate && !this.environment.getDatabaseNames().contains("definitions")) {
+			LOG.error("the working directory "+this.workingDirectory+" was created by an older version. "
+				+ "Run 'build' again with the same Makefile to upgrade it, the status of the targets is kept");
+			return -1;
+			}
 		LOG.info("opening db 'targets'");
 		DatabaseConfig cfg = new DatabaseConfig();
 		cfg.setAllowCreate(allowCreate);
 		cfg.setReadOnly(readOnly);
+		cfg.setDeferredWrite(this.bulkLoad);
 		this.targetsDatabase = this.environment.openDatabase(txn, "targets",cfg);
 		
+		LOG.info("opening db 'targetsByStatus'");
+		final SecondaryConfig secCfg = new SecondaryConfig();
+		secCfg.setAllowCreate(allowCreate);
+		secCfg.setReadOnly(readOnly);
+		secCfg.setDeferredWrite(this.bulkLoad);
+		secCfg.setSortedDuplicates(true);
+		secCfg.setAllowPopulate(true);
+		secCfg.setKeyCreator(new Task.StatusKeyCreator());
+		this.targetsByStatusDatabase = this.environment.openSecondaryDatabase(txn, "targetsByStatus",this.targetsDatabase,secCfg);
+		
+		LOG.info("opening db 'definitions'");
+		cfg = new DatabaseConfig();
+		cfg.setAllowCreate(allowCreate);
+		cfg.setReadOnly(readOnly);
+		cfg.setDeferredWrite(this.bulkLoad);
+		this.definitionsDatabase = this.environment.openDatabase(txn, "definitions",cfg);
+		
+		LOG.info("opening db 'dependents'");
+		cfg = new DatabaseConfig();
+		cfg.setAllowCreate(allowCreate);
+		cfg.setReadOnly(readOnly);
+		cfg.setDeferredWrite(this.bulkLoad);
+		cfg.setSortedDuplicates(true);
+		this.dependentsDatabase = this.environment.openDatabase(txn, "dependents",cfg);
+		
+		LOG.info("opening db 'readyByPriority'");
+		cfg = new DatabaseConfig();
+		cfg.setAllowCreate(allowCreate);
+		cfg.setReadOnly(readOnly);
+		cfg.setDeferredWrite(this.bulkLoad);
+		this.readyDatabase = this.environment.openDatabase(txn, "readyByPriority",cfg);
+		
 		cfg = new DatabaseConfig();
 		cfg.setAllowCreate(allowCreate);
 		cfg.setReadOnly(readOnly);
+		cfg.setDeferredWrite(this.bulkLoad);
 		this.metaDatabase = this.environment.openDatabase(txn, "metaDatabase",cfg);	
 		
 		
@@ -188,6 +414,10 @@ private int openEnvironement(
 			
 		}
 		
+		if(!readOnly) {
+			this.journal = new Journal.Writer(this.workingDirectory);
+			}
+		
 		LOG.info("STOP FILE IS "+getStopFile());
 		return 0;
 		}
@@ -197,11 +427,79 @@ private int openEnvironement(
 		}
 	}
 
-/** close BDB env */
-private void close() {
+/** creates a working directory in 'directory' and loads the tasks as 'build' does, package-private for the benchmarks.
+ * The prerequisites of a task must be before it in the list. The environment stays open until close() */
+int createWorkingDirectory(final File directory,final List<Task> tasks) throws IOException {
+	this.workingDirectory = directory;
+	this.baseDir = directory;
+	if(openEnvironement(null, true, false)!=0) return -1;
+	TaskLoader loader = null;
+	try {
+		loader = new TaskLoader(null, null);
+		for(final Task t: tasks) {
+			if(loader.add(t)!=0) return -1;
+			}
+		if(loader.flush()!=0) return -1;
+		if(loader.updatePriorities()!=0) return -1;
+		}
+	finally {
+		IoUtils.close(loader);
+		}
+	this.environment.sync();
+	return 0;
+	}
+
+/** the databases of the working directory, package-private for the benchmarks */
+Database getTargetsDatabase() {
+	return this.targetsDatabase;
+	}
+
+SecondaryDatabase getTargetsByStatusDatabase() {
+	return this.targetsByStatusDatabase;
+	}
+
+Database getDefinitionsDatabase() {
+	return this.definitionsDatabase;
+	}
+
+Database getDependentsDatabase() {
+	return this.dependentsDatabase;
+	}
+
+/** close BDB env, package-private for the benchmarks */
+void close() {
+	if(this.statusExecutor!=null) this.statusExecutor.shutdownNow();
+	this.statusExecutor=null;
+	
+	IoUtils.close(this.statCache);
+	this.statCache=null;
+	
+	IoUtils.close(this.history);
+	this.history=null;
+	this.historyOpened=false;
+	
+	if(this.targetsByStatusDatabase!=null) updateTaskGauges();
+	
+	if(this.journal!=null) {
+		try { this.journal.close(); } catch(final IOException err) { LOG.error("Cannot close the journal", err); }
+		}
+	this.journal=null;
+	
 	if(this.metaDatabase!=null) this.metaDatabase.close();
 	this.metaDatabase=null;
 	
+	if(this.readyDatabase!=null) this.readyDatabase.close();
+	this.readyDatabase=null;
+	
+	if(this.dependentsDatabase!=null) this.dependentsDatabase.close();
+	this.dependentsDatabase=null;
+	
+	if(this.definitionsDatabase!=null) this.definitionsDatabase.close();
+	this.definitionsDatabase=null;
+	
+	if(this.targetsByStatusDatabase!=null) this.targetsByStatusDatabase.close();
+	this.targetsByStatusDatabase=null;
+	
 	if(this.targetsDatabase!=null){
 		this.targetsDatabase.close();
 	}
@@ -221,326 +519,2115 @@ private void close() {
 
 
 
-private int printHelp(final String helpName) {
-	final HelpFormatter fmt =new  HelpFormatter();
-	final PrintWriter pw = new PrintWriter(System.out);
-	pw.println(helpName);
-	fmt.printOptions(pw, 80, this.options, 5, 5);
-	pw.println();
-	pw.flush();
-	pw.close();
-	return 0;
+/** get the binding for the 'targets' database. Must be called when the base directory is known */
+private Task.Binding getTaskBinding() {
+	return new Task.Binding(getWorkingDirectory(), getBaseDirectory());
 	}
 
-
-private int build(final String argv[]) {
-	Transaction txn = null;
-	BufferedReader in = null;
-	String makeExecutable="make";
-	try {
-		this.options.addOption(Option.builder(OPTION_MAKE_EXECUTABLE).
-				hasArg(true).
-				longOpt(OPTION_MAKE_EXECUTABLE).
-				argName("MAKE").
-				desc("make executable. Default: "+makeExecutable).
-				build());
-		
-		this.options.addOption(Option.builder(OPTION_MAKEFILEIN).
-				hasArg(true).
-				longOpt("makefile").
-				argName("DIR").
-				desc("debug Makefile").
-				build());
-		
-		final CommandLineParser parser = new DefaultParser();
-		this.cmdLine = parser.parse(this.options, argv);
-		final List<String> args= this.cmdLine.getArgList();
-		
-		if(cmdLine.hasOption(OPTION_MAKE_EXECUTABLE)) {
-			makeExecutable = cmdLine.getOptionValue(OPTION_MAKE_EXECUTABLE);
+/** get a task from the 'targets' database, returns null if not found */
+private Task getTask(final Transaction txn,final String targetName) {
+	final DatabaseEntry key=new DatabaseEntry();
+	final DatabaseEntry data=new DatabaseEntry();
+	StringBinding.stringToEntry(targetName, key);
+	final long startNanos = System.nanoTime();
+	final OperationStatus status = this.targetsDatabase.get(txn, key, data, LockMode.DEFAULT);
+	this.getTargetTime.observeSince(startNanos);
+	if(status!=OperationStatus.SUCCESS) {
+		return null;
 		}
-		
-		if(cmdLine.hasOption(OPTION_HELP)) {
-			return printHelp("build");
+	return getTaskBinding().entryToObject(data);
+	}
+
+/** get a view over the record of a task in the 'targets' database, returns null if not found.
+ * A record in an old format is rewritten first, so its definition is moved to the 'definitions' database */
+private TaskView getTaskView(final Transaction txn,final String targetName,final TaskView view,final DatabaseEntry data) {
+	final DatabaseEntry key=new DatabaseEntry();
+	StringBinding.stringToEntry(targetName, key);
+	final long startNanos = System.nanoTime();
+	final OperationStatus status = this.targetsDatabase.get(txn, key, data, LockMode.DEFAULT);
+	this.getTargetTime.observeSince(startNanos);
+	if(status!=OperationStatus.SUCCESS) {
+		return null;
 		}
-		
-		if(parseWorkingDirectory()!=0) return -1;
-		
-		
-		if(!cmdLine.hasOption(OPTION_MAKEFILEIN)) {
-			LOG.error("option -"+OPTION_MAKEFILEIN+" undefined");
-			return -1;
+	if(Task.Binding.getFormat(TupleBinding.entryToInput(data))!=Task.Binding.FORMAT_V2) {
+		final Task t = getTaskBinding().entryToObject(data);
+		if(putTask(txn, t)!=0) return null;
+		getTaskBinding().objectToEntry(t, data);
 		}
-		final File makefileIn =new File(cmdLine.getOptionValue(OPTION_MAKEFILEIN));
-		if( !makefileIn.exists()) {
-			System.err.println("Option -"+OPTION_MAKEFILEIN+" file doesn't exists: "+makefileIn);
-			return -1;
+	return view.wrap(data);
+	}
+
+/** save a record modified through a view. 'previous' is the status before the change, for the journal */
+private int putTaskView(final Transaction txn,final TaskView view,final TaskStatus previous) {
+	final DatabaseEntry key=new DatabaseEntry();
+	StringBinding.stringToEntry(view.getName(), key);
+	final long startNanos = System.nanoTime();
+	final OperationStatus status = this.targetsDatabase.put(txn, key, view.getEntry());
+	this.putTargetTime.observeSince(startNanos);
+	if(status!=OperationStatus.SUCCESS) {
+		LOG.error("Cannot update "+view);
+		return -1;
 		}
-		
-		if( !makefileIn.isFile()) {
-			System.err.println("Option -"+OPTION_MAKEFILEIN+" this is not a file : "+makefileIn);
+	if(this.journal!=null && previous!=view.getStatus()) {
+		try {
+			this.journal.append(view.getName(), view.getProcessId(), previous, view.getStatus());
+			}
+		catch(final IOException err) {
+			LOG.error("Cannot write the change of status of "+view+" in the journal", err);
 			return -1;
+			}
 		}
-		if( !makefileIn.isAbsolute() || makefileIn.getParentFile()==null) {
-			System.err.println("Option -"+OPTION_MAKEFILEIN+" path is not absolute : "+makefileIn);
-			return -1;
+	return 0;
+	}
+
+/** get the tasks having the given status using the 'targetsByStatus' index */
+private List<Task> getTasksByStatus(final Transaction txn,final TaskStatus status) {
+	final List<Task> tasks = new ArrayList<>();
+	SecondaryCursor c = null;
+	final long startNanos = System.nanoTime();
+	try {
+		final Task.Binding taskBinding = getTaskBinding();
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry pKey=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		Task.statusToEntry(status, key);
+		c = this.targetsByStatusDatabase.openCursor(txn, null);
+		OperationStatus opStatus = c.getSearchKey(key, pKey, data, LockMode.DEFAULT);
+		while(opStatus==OperationStatus.SUCCESS) {
+			tasks.add(taskBinding.entryToObject(data));
+			opStatus = c.getNextDup(key, pKey, data, LockMode.DEFAULT);
+			}
+		return tasks;
 		}
-		
-		
-		if(openEnvironement(txn, true,false)!=0) {
-			return -1;
+	finally {
+		IoUtils.close(c);
+		this.scanByStatusTime.observeSince(startNanos);
 		}
-         
-     	final List<String> cmdargs= new ArrayList<>();
-		cmdargs.add(makeExecutable);
-		cmdargs.add("-ndr");
-		cmdargs.add("-C");
-		cmdargs.add(makefileIn.getParentFile().getPath());
-		cmdargs.add("-f");
-		cmdargs.add(makefileIn.getName());
-		for(final String arg: args) cmdargs.add(arg);
-		
-		LOG.info("invoking make :"+String.join(" ", cmdargs));
-		final ProcessBuilder procbuilder= new ProcessBuilder(cmdargs);
-		procbuilder.directory(makefileIn.getParentFile());
-
-		final Process proc = procbuilder.start();
-		final StreamBoozer sb = new StreamBoozer(proc.getErrorStream(),System.err,"[make]");
-		sb.start();
-	
-		LOG.info("Reading graph");
-	    in = new BufferedReader(new InputStreamReader(proc.getInputStream()));
-	    final Graph graph = Graph.parse(in);
-	    IoUtils.close(in);in=null;
-	    final Task.Binding taskBinding = new Task.Binding();
-         int nTargets=0;
-         LOG.info("inserting targets");
-         final DatabaseEntry key = new DatabaseEntry();
-         final DatabaseEntry data = new DatabaseEntry();
-         for(final Target t: graph.getTargets()) {
-        	 if(nTargets++%100==0) LOG.info("inserting "+t.getName()+" "+nTargets);
-        	 final Task task = new Task(t);       
-        	 
-        	 //skip those targets, eg. "Makefile"
-        	 if(task.shellScriptLines.isEmpty() && task.getPrerequisites().isEmpty()) {
-        		 task.targetStatus = TaskStatus.COMPLETED;
-        	 }
-        	 
-        	 StringBinding.stringToEntry(t.getName(), key);
-        	 taskBinding.objectToEntry(task, data);
-        	 if( this.targetsDatabase.put(txn, key, data) != OperationStatus.SUCCESS) {
-        		 LOG.error("Cannot insert "+task);
-        		 return -1;
-        	 }
-         }
-         
-         LOG.info("inserting metadata");
-         StringBinding.stringToEntry( BASEDIRKEY,key);
-         StringBinding.stringToEntry(makefileIn.getParentFile().getPath(),data);
-         if( this.metaDatabase.put(txn, key, data) != OperationStatus.SUCCESS) {
-    		 LOG.error("Cannot insert "+BASEDIRKEY);
-    		 return -1;
-    	 	}
-         
-		return 0;
-	} catch(Exception err) {
-		LOG.error("Boum", err);
-		return -1;
-	} finally {
-		close();
 	}
-}
 
+/** get the names of the tasks having the given status using the 'targetsByStatus' index, the records are not decoded */
+private List<String> getTaskNamesByStatus(final Transaction txn,final TaskStatus status) {
+	final List<String> names = new ArrayList<>();
+	SecondaryCursor c = null;
+	final long startNanos = System.nanoTime();
+	try {
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry pKey=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		Task.statusToEntry(status, key);
+		c = this.targetsByStatusDatabase.openCursor(txn, null);
+		OperationStatus opStatus = c.getSearchKey(key, pKey, data, LockMode.DEFAULT);
+		while(opStatus==OperationStatus.SUCCESS) {
+			names.add(StringBinding.entryToString(pKey));
+			opStatus = c.getNextDup(key, pKey, data, LockMode.DEFAULT);
+			}
+		return names;
+		}
+	finally {
+		IoUtils.close(c);
+		this.scanByStatusTime.observeSince(startNanos);
+		}
+	}
 
-protected abstract void kill(final Task t)  throws IOException;
-
+/** get any task having the given status using the 'targetsByStatus' index, returns null if there is none */
+private Task getFirstTaskByStatus(final Transaction txn,final TaskStatus status) {
+	final DatabaseEntry key=new DatabaseEntry();
+	final DatabaseEntry pKey=new DatabaseEntry();
+	final DatabaseEntry data=new DatabaseEntry();
+	Task.statusToEntry(status, key);
+	final long startNanos = System.nanoTime();
+	final OperationStatus opStatus = this.targetsByStatusDatabase.get(txn, key, pKey, data, LockMode.DEFAULT);
+	this.getByStatusTime.observeSince(startNanos);
+	if(opStatus!=OperationStatus.SUCCESS) {
+		return null;
+		}
+	return getTaskBinding().entryToObject(data);
+	}
 
-private int kill(final String argv[]) {
-Cursor c = null;
-Transaction txn = null;
-try {
-	this.options.addOption(Option.builder(OPTION_RESETFAILURE).
-			hasArg(false).
-			longOpt("reset").
-			desc("reset failure : ERROR -> UNDEFINED").
-			build()
-			);	
+/** get the name of any task having the given status, the record is not read. Returns null if there is none */
+private String getFirstTaskNameByStatus(final Transaction txn,final TaskStatus status) {
+	final DatabaseEntry key=new DatabaseEntry();
+	final DatabaseEntry pKey=new DatabaseEntry();
+	final DatabaseEntry data=new DatabaseEntry();
+	data.setPartial(0, 0, true);
+	Task.statusToEntry(status, key);
+	final long startNanos = System.nanoTime();
+	final OperationStatus opStatus = this.targetsByStatusDatabase.get(txn, key, pKey, data, LockMode.DEFAULT);
+	this.getByStatusTime.observeSince(startNanos);
+	if(opStatus!=OperationStatus.SUCCESS) {
+		return null;
+		}
+	return StringBinding.entryToString(pKey);
+	}
 
-	
-	final CommandLineParser parser = new DefaultParser();
-	this.cmdLine = parser.parse(this.options, argv);
-	
-	if(this.cmdLine.hasOption(OPTION_HELP)) {
-		printHelp("kill current running jobs");
-		return 0;
+/** load the recipe and the prerequisites of a task from the 'definitions' database, if needed */
+private int loadDefinition(final Transaction txn,final Task task) {
+	if(task.definitionLoaded) return 0;
+	final DatabaseEntry key=new DatabaseEntry();
+	final DatabaseEntry data=new DatabaseEntry();
+	StringBinding.stringToEntry(task.getName(), key);
+	final long startNanos = System.nanoTime();
+	final OperationStatus status = this.definitionsDatabase.get(txn, key, data, LockMode.DEFAULT);
+	this.getDefinitionTime.observeSince(startNanos);
+	if(status!=OperationStatus.SUCCESS) {
+		LOG.error("Cannot get definition of "+task);
+		return -1;
+		}
+	Task.DefinitionBinding.readDefinition(data, task);
+	return 0;
 	}
-	
-	if(!this.cmdLine.getArgList().isEmpty()) {
-		LOG.error("Illegal number of arguments");
+
+/** save the recipe and the prerequisites of a task in the 'definitions' database */
+private int putDefinition(final Transaction txn,final Task task) {
+	final DatabaseEntry key=new DatabaseEntry();
+	final DatabaseEntry data=new DatabaseEntry();
+	StringBinding.stringToEntry(task.getName(), key);
+	Task.DefinitionBinding.writeDefinition(task, data);
+	final long startNanos = System.nanoTime();
+	final OperationStatus status = this.definitionsDatabase.put(txn, key, data);
+	this.putDefinitionTime.observeSince(startNanos);
+	if(status!=OperationStatus.SUCCESS) {
+		LOG.error("Cannot insert definition of "+task);
 		return -1;
+		}
+	return 0;
 	}
-	if(this.parseWorkingDirectory()!=0) return -1;
-	if(openEnvironement(txn, false,false)!=0) return -1;
-	
-	
-	final boolean resetfailure=this.cmdLine.hasOption(OPTION_RESETFAILURE);
 
-	
-	c = this.targetsDatabase.openCursor(txn,null);
+/** save the state of a task in the 'targets' database. The definition is only written if it comes from an old record */
+private int putTask(final Transaction txn,final Task task) {
+	if(task.inlineDefinition) {
+		if(putDefinition(txn, task)!=0) return -1;
+		task.inlineDefinition = false;
+		}
 	final DatabaseEntry key=new DatabaseEntry();
 	final DatabaseEntry data=new DatabaseEntry();
-	final Task.Binding taskBinding = new Task.Binding();
-	while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS)
-		{
-		final Task t = taskBinding.entryToObject(data);
-		if (t.getName().contains("<")) continue;// <ROOT>
-		switch (t.targetStatus) {
-			case COMPLETED:
-				break;
-			case TOBEDONE:
-				break;
-			case RUNNING: {
-				LOG.warn("killing " + t);
-				kill(t);
-				t.targetStatus = (resetfailure ? TaskStatus.ERROR : TaskStatus.TOBEDONE);
-				taskBinding.objectToEntry(t, data);
-				if (c.putCurrent(data) != OperationStatus.SUCCESS) {
-					LOG.error("Cannot update " + t.getName());
-					return -1;
-				}
-				break;
-			}
-			case ERROR: {
-				if (resetfailure) {
-					LOG.warn("Reset status of " + t);
-					t.targetStatus = TaskStatus.TOBEDONE;
-					taskBinding.objectToEntry(t, data);
-					if (c.putCurrent(data) != OperationStatus.SUCCESS) {
-						LOG.error("Cannot reset status of " + t);
-						return -1;
-					}
-				}
-				break;
+	StringBinding.stringToEntry(task.getName(), key);
+	getTaskBinding().objectToEntry(task, data);
+	final long startNanos = System.nanoTime();
+	final OperationStatus status = this.targetsDatabase.put(txn, key, data);
+	this.putTargetTime.observeSince(startNanos);
+	if(status!=OperationStatus.SUCCESS) {
+		LOG.error("Cannot update "+task);
+		return -1;
+		}
+	return journalStatus(task);
+	}
+
+/** a task was saved: write its change of status, if any, in the journal */
+private int journalStatus(final Task task) {
+	final TaskStatus previous = (task.storedStatus==null?TaskStatus.TOBEDONE:task.storedStatus);
+	if(this.journal!=null && previous!=task.targetStatus) {
+		try {
+			this.journal.append(task, previous);
 			}
-			default: {
-				LOG.error("illegal state " + t.getName());
-				return -1;
+		catch(final IOException err) {
+			LOG.error("Cannot write the change of status of "+task+" in the journal", err);
+			return -1;
 			}
 		}
-		}
+	task.storedStatus = task.targetStatus;
 	return 0;
-} catch(final Exception err) {
-	LOG.error("Boum", err);
-	return -1;
-} finally {
-	IoUtils.close(c);
-	close();
-}
-}
-
-protected abstract int submitJob(final Task task);
+	}
 
-private int list(final String argv[]) {
-Cursor c = null;
-final Transaction txn = null;
-try {
-	final CommandLineParser parser = new DefaultParser();
-	this.cmdLine = parser.parse(this.options, argv);
-	
-	if(this.cmdLine.hasOption(OPTION_HELP)) {
-		printHelp("Build scheduler from Makefile");
+/** write the snapshot of the status of the tasks used by the option --journal of 'list' and 'eow' */
+private int writeSnapshot(final Transaction txn) {
+	if(this.journal==null) return 0;
+	Cursor c = null;
+	Journal.SnapshotWriter snapshot = null;
+	try {
+		snapshot = new Journal.SnapshotWriter(this.workingDirectory, this.journal.getLength());
+		final Task.Binding taskBinding = getTaskBinding();
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		c = this.targetsDatabase.openCursor(txn, null);
+		while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS) {
+			final Task t = taskBinding.entryToObject(data);
+			if(t.getName().contains("<")) continue;//<ROOT>
+			snapshot.add(t);
+			}
+		snapshot.commit();
 		return 0;
+		}
+	catch(final IOException err) {
+		LOG.error("Cannot write the snapshot of the journal", err);
+		return -1;
+		}
+	finally {
+		IoUtils.close(c);
+		IoUtils.close(snapshot);
+		}
+	}
+
+/** the key of the 'ready' database: the tasks are sorted by decreasing priority, then by name */
+private static void readyToEntry(final int priority,final String targetName,final DatabaseEntry key) {
+	final TupleOutput out = new TupleOutput();
+	out.writeInt(-priority);
+	out.writeString(targetName);
+	TupleBinding.outputToEntry(out, key);
+	}
+
+/** returns the name of the task from a key of the 'ready' database */
+private static String entryToReadyName(final DatabaseEntry key) {
+	final TupleInput in = TupleBinding.entryToInput(key);
+	in.readInt();//priority
+	return in.readString();
+	}
+
+/** add or remove a task from the 'ready' database */
+private int setReady(final Transaction txn,final Task task,boolean ready) {
+	return setReady(txn, task.priority, task.getName(), ready);
+	}
+
+private int setReady(final Transaction txn,final TaskView view,boolean ready) {
+	return setReady(txn, view.getPriority(), view.getName(), ready);
+	}
+
+private int setReady(final Transaction txn,final int priority,final String targetName,boolean ready) {
+	final DatabaseEntry key=new DatabaseEntry();
+	readyToEntry(priority, targetName, key);
+	final long startNanos = System.nanoTime();
+	if(ready) {
+		final OperationStatus status = this.readyDatabase.put(txn, key, new DatabaseEntry(new byte[0]));
+		this.putReadyTime.observeSince(startNanos);
+		if(status!=OperationStatus.SUCCESS) {
+			LOG.error("Cannot insert "+targetName+" in ready tasks");
+			return -1;
+			}
+		}
+	else
+		{
+		final OperationStatus status = this.readyDatabase.delete(txn, key);
+		this.deleteReadyTime.observeSince(startNanos);
+		if(status!=OperationStatus.SUCCESS && status!=OperationStatus.NOTFOUND) {
+			LOG.error("Cannot remove "+targetName+" from ready tasks");
+			return -1;
+			}
+		}
+	return 0;
 	}
+
+/** returns the names of the tasks having 'targetName' as prerequisite */
+private List<String> getDependents(final Transaction txn,final String targetName) {
+	final List<String> dependents = new ArrayList<>();
+	Cursor c = null;
+	final long startNanos = System.nanoTime();
+	try {
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		StringBinding.stringToEntry(targetName, key);
+		c = this.dependentsDatabase.openCursor(txn, null);
+		OperationStatus status = c.getSearchKey(key, data, LockMode.DEFAULT);
+		while(status==OperationStatus.SUCCESS) {
+			dependents.add(StringBinding.entryToString(data));
+			status = c.getNextDup(key, data, LockMode.DEFAULT);
+			}
+		}
+	finally {
+		IoUtils.close(c);
+		this.scanDependentsTime.observeSince(startNanos);
+		}
+	return dependents;
+	}
+
+/** a task was COMPLETED: decrement the pending count of the tasks depending on it
+ * and move the tasks that have no more pending prerequisite to the 'ready' database */
+private int propagateCompleted(final Transaction txn,final Task completed) {
+	/* only the pending count changes: it is decremented in place in the record */
+	final TaskView t = new TaskView(getTaskBinding());
+	final DatabaseEntry data=new DatabaseEntry();
+	for(final String dependentName: getDependents(txn, completed.getName())) {
+		if(getTaskView(txn, dependentName, t, data)==null) {
+			LOG.error("Cannot get dependent "+dependentName+" of "+completed);
+			return -1;
+			}
+		final int pending = t.getPendingPrerequisites();
+		if(pending<=0) {
+			LOG.warn("no pending prerequisite for "+t+" but "+completed.getName()+" was just completed");
+			continue;
+			}
+		t.setPendingPrerequisites(pending-1);
+		final TaskStatus status = t.getStatus();
+		if(putTaskView(txn, t, status)!=0) return -1;
+		if(pending==1 &&
+			status==TaskStatus.TOBEDONE &&
+			!t.getName().contains("<")) {
+			LOG.info("ready: "+t.getName());
+			if(setReady(txn, t, true)!=0) return -1;
+			}
+		}
+	return 0;
+	}
+
+private int printHelp(final String helpName) {
+	final HelpFormatter fmt =new  HelpFormatter();
+	final PrintWriter pw = new PrintWriter(System.out);
+	pw.println(helpName);
+	fmt.printOptions(pw, 80, this.options, 5, 5);
+	pw.println();
+	pw.flush();
+	pw.close();
+	return 0;
+	}
+
+
+/** writes the tasks of 'build' by batches sorted by name.
+ * The tasks must be added in post-order: the prerequisites before the tasks depending on them,
+ * so the status of the prerequisites is either in the current batch or already in the database.
+ * 
+ * A working directory that was already built is updated: each new task is compared with its stored record.
+ * A task keeps its state if its recipe and its prerequisites didn't change and none of its prerequisites
+ * has to be done again, otherwise it is reset to TOBEDONE. Because the prerequisites come first, the reset is propagated
+ * to all the dependents. The names of the tasks are kept in a temporary database, so the stored
+ * targets that are not in the Makefile anymore can be deleted at the end, see removeMissingTargets.
+ * The order of insertion is kept in another temporary database, the priorities are computed by reading it backwards, see updatePriorities */
+private class TaskLoader implements Closeable {
+	private static final int BATCH_SIZE = 10000;
+	/** with --up-to-date, number of tasks waiting while the modification times of their files are read */
+	private static final int LOOKAHEAD_SIZE = 1000;
+	private final Transaction txn;
+	private final Task.Binding taskBinding;
+	private final Map<String,Task> batch = new HashMap<>();
+	private final Deque<Task> lookahead = new ArrayDeque<>();
+	/* status of the prerequisites already in the database */
+	private final TaskView view;
+	private final DatabaseEntry viewData = new DatabaseEntry();
+	/* names of the tasks seen in this build */
+	private Database seenDatabase;
+	/* key: rank of insertion, data: name and weight of the task */
+	private Database orderDatabase;
+	private long nInserted = 0L;
+	/* durations of the previous runs, weight the priorities. May be null */
+	private final RuntimeHistory history;
+	private final long startMillis = System.currentTimeMillis();
+	private long nTargets = 0L;
+	private long nBytes = 0L;
+	private long nKept = 0L;
+	private long nReset = 0L;
+	private long nDeleted = 0L;
+	private long nUpToDate = 0L;
+	/* set by diff: the task was in a previous build with another definition */
+	private boolean definitionChanged = false;
 	
-	if(!this.cmdLine.getArgList().isEmpty()) {
-		LOG.error("Illegal number of arguments");
+	TaskLoader(final Transaction txn,final RuntimeHistory history) {
+		this.txn = txn;
+		this.history = history;
+		this.taskBinding = getTaskBinding();
+		this.view = new TaskView(this.taskBinding);
+		final DatabaseConfig cfg = new DatabaseConfig();
+		cfg.setAllowCreate(true);
+		cfg.setTemporary(true);
+		this.seenDatabase = environment.openDatabase(txn, "buildTargets", cfg);
+		this.orderDatabase = environment.openDatabase(txn, "buildOrder", cfg);
+		}
+	
+	private TaskStatus getPrerequisiteStatus(final String targetName) {
+		final Task t = this.batch.get(targetName);
+		if(t!=null) return t.targetStatus;
+		if(getTaskView(this.txn, targetName, this.view, this.viewData)==null) {
+			LOG.warn("prerequisite "+targetName+" was not seen before the targets depending on it");
+			return TaskStatus.COMPLETED;
+			}
+		return this.view.getStatus();
+		}
+	
+	int add(final Task task) {
+		if(statCache==null) return insert(task);
+		statCache.prefetch(getTargetFile(task.getName()));
+		this.lookahead.add(task);
+		if(this.lookahead.size()< LOOKAHEAD_SIZE) return 0;
+		return insert(this.lookahead.poll());
+		}
+	
+	private int insert(final Task task) {
+		//skip those targets, eg. "Makefile"
+		if(task.shellScriptLines.isEmpty() && task.getPrerequisites().isEmpty()) {
+			task.targetStatus = TaskStatus.COMPLETED;
+			}
+		task.pendingPrerequisites = 0;
+		task.cores = getCores(task);
+		for(final String prereqName : task.getPrerequisites()) {
+			if(getPrerequisiteStatus(prereqName)!=TaskStatus.COMPLETED) task.pendingPrerequisites++;
+			}
+		if(diff(task)!=0) return -1;
+		/* an edited rule is done again, even if its target is newer than its prerequisites */
+		if(statCache!=null &&
+			!this.definitionChanged &&
+			task.targetStatus==TaskStatus.TOBEDONE &&
+			task.pendingPrerequisites==0 &&
+			!task.shellScriptLines.isEmpty() &&
+			!task.getName().contains("<")) {
+			try {
+				if(isUpToDate(task)) {
+					task.targetStatus = TaskStatus.COMPLETED;
+					upToDateTasks.inc();
+					this.nUpToDate++;
+					}
+				}
+			catch(final IOException err) {
+				LOG.error("Cannot check if "+task+" is up to date", err);
+				return -1;
+				}
+			}
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		final TupleOutput out = new TupleOutput();
+		out.writeString(task.getName());
+		out.writePackedInt(task.getWeight(this.history==null?null:this.history.get(task)));
+		LongBinding.longToEntry(this.nInserted++, key);
+		TupleBinding.outputToEntry(out, data);
+		if(this.orderDatabase.put(this.txn, key, data)!=OperationStatus.SUCCESS) {
+			LOG.error("Cannot insert "+task);
+			return -1;
+			}
+		this.batch.put(task.getName(), task);
+		if(this.nTargets++%10000==0) LOG.info("inserting "+task.getName()+" "+this.nTargets);
+		if(this.batch.size()>=BATCH_SIZE) return writeBatch();
+		return 0;
+		}
+	
+	/** compare a new task with its record from a previous build, if any. An unchanged task gets the stored state,
+	 * the dependencies that are not in the new definition are removed. Sets definitionChanged */
+	private int diff(final Task task) {
+		this.definitionChanged = false;
+		if(getTaskView(this.txn, task.getName(), this.view, this.viewData)==null) return 0;
+		final Task stored = this.view.toTask();
+		task.storedStatus = stored.targetStatus;
+		if(loadDefinition(this.txn, stored)!=0) return -1;
+		for(final String prereqName: stored.getPrerequisites()) {
+			if(task.getPrerequisites().contains(prereqName)) continue;
+			if(removeDependency(prereqName, stored.getName())!=0) return -1;
+			}
+		/* make doesn't print the recipe of a target that is up to date: keep the stored one */
+		if(task.shellScriptLines.isEmpty() && stored.getPrerequisites().equals(task.getPrerequisites())) {
+			task.shellScriptLines.addAll(stored.shellScriptLines);
+			}
+		/* a target without recipe and prerequisites is always COMPLETED */
+		if(task.targetStatus==TaskStatus.COMPLETED) return 0;
+		this.definitionChanged = !stored.definitionMd5().equals(task.definitionMd5());
+		if(!this.definitionChanged &&
+			(task.pendingPrerequisites==0 || stored.targetStatus==TaskStatus.TOBEDONE)) {
+			task.targetStatus = stored.targetStatus;
+			task.processId = stored.processId;
+			task.shellScriptFile = stored.shellScriptFile;
+			task.stdoutFile = stored.stdoutFile;
+			task.stderrFile = stored.stderrFile;
+			task.startMilliSec = stored.startMilliSec;
+			task.endMilliSec = stored.endMilliSec;
+			this.nKept++;
+			return 0;
+			}
+		if(stored.targetStatus==TaskStatus.RUNNING) {
+			LOG.error(task.getName()+" must be done again but it is running. Use 'kill' first");
+			return -1;
+			}
+		if(stored.targetStatus!=TaskStatus.TOBEDONE) LOG.info("reset "+stored.getName()+" ("+stored.targetStatus+")");
+		this.nReset++;
+		return 0;
+		}
+	
+	/** remove the pair prerequisite/dependent from the 'dependents' database */
+	private int removeDependency(final String prereqName,final String dependentName) {
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		StringBinding.stringToEntry(prereqName, key);
+		StringBinding.stringToEntry(dependentName, data);
+		Cursor c = null;
+		try {
+			c = dependentsDatabase.openCursor(this.txn, null);
+			if(c.getSearchBoth(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS &&
+				c.delete()!=OperationStatus.SUCCESS) {
+				LOG.error("Cannot remove dependency "+prereqName+" -> "+dependentName);
+				return -1;
+				}
+			return 0;
+			}
+		finally {
+			IoUtils.close(c);
+			}
+		}
+	
+	/** delete the stored targets that were not seen in this build, with their definition and their dependencies.
+	 * Must be called after the last flush */
+	int removeMissingTargets() {
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		final DatabaseEntry empty = new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		empty.setPartial(0, 0, true);
+		/* only the names of the removed targets are kept in memory, they are deleted once the cursor is closed */
+		final List<String> missing = new ArrayList<>();
+		Cursor c = null;
+		try {
+			c = targetsDatabase.openCursor(this.txn, null);
+			while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS) {
+				if(this.seenDatabase.get(this.txn, key, empty, LockMode.DEFAULT)==OperationStatus.SUCCESS) continue;
+				missing.add(StringBinding.entryToString(key));
+				}
+			}
+		finally {
+			IoUtils.close(c);
+			}
+		for(final String name: missing) {
+			final Task t = getTask(this.txn, name);
+			if(t==null) continue;
+			if(t.targetStatus==TaskStatus.RUNNING) {
+				LOG.error(name+" is not in the Makefile anymore but it is running. Use 'kill' first");
+				return -1;
+				}
+			if(loadDefinition(this.txn, t)!=0) return -1;
+			LOG.info("removing "+name);
+			for(final String prereqName: t.getPrerequisites()) {
+				if(removeDependency(prereqName, name)!=0) return -1;
+				}
+			StringBinding.stringToEntry(name, key);
+			for(final Database db: new Database[]{dependentsDatabase, definitionsDatabase, targetsDatabase}) {
+				final OperationStatus status = db.delete(this.txn, key);
+				if(status!=OperationStatus.SUCCESS && status!=OperationStatus.NOTFOUND) {
+					LOG.error("Cannot remove "+name);
+					return -1;
+					}
+				}
+			this.nDeleted++;
+			}
+		return 0;
+		}
+	
+	/** compute the priority of the tasks: their weight plus the highest priority of their dependents.
+	 * The tasks are read in the reverse order of insertion, so the dependents of a task come before it.
+	 * Only the records whose priority changed are written. The 'ready' database is filled again, its keys depend on the priorities.
+	 * Must be called after the last flush */
+	int updatePriorities() {
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		final TaskView dependentView = new TaskView(this.taskBinding);
+		final DatabaseEntry dependentData = new DatabaseEntry();
+		Cursor c = null;
+		try {
+			final DatabaseEntry empty = new DatabaseEntry();
+			empty.setPartial(0, 0, true);
+			c = readyDatabase.openCursor(this.txn, null);
+			while(c.getNext(key, empty, LockMode.DEFAULT)==OperationStatus.SUCCESS) {
+				if(c.delete()!=OperationStatus.SUCCESS) {
+					LOG.error("Cannot clear the ready tasks");
+					return -1;
+					}
+				}
+			c.close();
+			
+			c = this.orderDatabase.openCursor(this.txn, null);
+			while(c.getPrev(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS) {
+				final TupleInput in = TupleBinding.entryToInput(data);
+				final String name = in.readString();
+				final int weight = in.readPackedInt();
+				int downstream = 0;
+				for(final String dependent: getDependents(this.txn, name)) {
+					if(getTaskView(this.txn, dependent, dependentView, dependentData)==null) continue;
+					downstream = Math.max(downstream, dependentView.getPriority());
+					}
+				if(getTaskView(this.txn, name, this.view, this.viewData)==null) {
+					LOG.error("Cannot get "+name);
+					return -1;
+					}
+				if(this.view.getPriority()!=weight+downstream) {
+					this.view.setPriority(weight+downstream);
+					if(putTaskView(this.txn, this.view, this.view.getStatus())!=0) return -1;
+					}
+				if(this.view.getStatus()==TaskStatus.TOBEDONE &&
+					this.view.getPendingPrerequisites()==0 &&
+					!name.contains("<")) {
+					if(setReady(this.txn, this.view, true)!=0) return -1;
+					}
+				}
+			return 0;
+			}
+		finally {
+			IoUtils.close(c);
+			}
+		}
+	
+	@Override
+	public void close() {
+		if(this.seenDatabase!=null) this.seenDatabase.close();
+		this.seenDatabase = null;
+		if(this.orderDatabase!=null) this.orderDatabase.close();
+		this.orderDatabase = null;
+		}
+	
+	/** insert the remaining tasks */
+	int flush() {
+		while(!this.lookahead.isEmpty()) {
+			if(insert(this.lookahead.poll())!=0) return -1;
+			}
+		return writeBatch();
+		}
+	
+	private int writeBatch() {
+		if(this.batch.isEmpty()) return 0;
+		final List<Task> tasks = new ArrayList<>(this.batch.values());
+		/* records are written in key order */
+		Collections.sort(tasks, new Comparator<Task>() {
+			@Override
+			public int compare(final Task t1,final Task t2) {
+				return t1.getName().compareTo(t2.getName());
+				}
+			});
+		/* pairs prerequisite/dependent */
+		final List<String[]> dependencies = new ArrayList<>();
+		final DatabaseEntry key = new DatabaseEntry();
+		final DatabaseEntry data = new DatabaseEntry();
+		for(final Task task: tasks) {
+			for(final String prereqName : task.getPrerequisites()) {
+				dependencies.add(new String[]{prereqName,task.getName()});
+				}
+			StringBinding.stringToEntry(task.getName(), key);
+			Task.DefinitionBinding.writeDefinition(task, data);
+			this.nBytes += key.getSize() + data.getSize();
+			long startNanos = System.nanoTime();
+			OperationStatus status = definitionsDatabase.put(this.txn, key, data);
+			putDefinitionTime.observeSince(startNanos);
+			if( status != OperationStatus.SUCCESS) {
+				LOG.error("Cannot insert definition of "+task);
+				return -1;
+				}
+			this.taskBinding.objectToEntry(task, data);
+			this.nBytes += key.getSize() + data.getSize();
+			startNanos = System.nanoTime();
+			status = targetsDatabase.put(this.txn, key, data);
+			putTargetTime.observeSince(startNanos);
+			if( status != OperationStatus.SUCCESS) {
+				LOG.error("Cannot insert "+task);
+				return -1;
+				}
+			if(journalStatus(task)!=0) return -1;
+			if(this.seenDatabase.put(this.txn, key, new DatabaseEntry(new byte[0]))!=OperationStatus.SUCCESS) {
+				LOG.error("Cannot insert "+task);
+				return -1;
+				}
+			}
+		
+		Collections.sort(dependencies, new Comparator<String[]>() {
+			@Override
+			public int compare(final String[] o1,final String[] o2) {
+				final int i = o1[0].compareTo(o2[0]);
+				return i!=0?i:o1[1].compareTo(o2[1]);
+				}
+			});
+		for(final String[] dependency: dependencies) {
+			StringBinding.stringToEntry(dependency[0], key);
+			StringBinding.stringToEntry(dependency[1], data);
+			this.nBytes += key.getSize() + data.getSize();
+			final long startNanos = System.nanoTime();
+			final OperationStatus status = dependentsDatabase.putNoDupData(this.txn, key, data);
+			putDependentTime.observeSince(startNanos);
+			if( status != OperationStatus.SUCCESS && status != OperationStatus.KEYEXIST) {
+				LOG.error("Cannot insert dependency "+dependency[0]+" -> "+dependency[1]);
+				return -1;
+				}
+			}
+		this.batch.clear();
+		return 0;
+		}
+	
+	void report() {
+		final double seconds = Math.max(1L, System.currentTimeMillis() - this.startMillis)/1000.0;
+		LOG.info(String.format("inserted %d targets in %.1f seconds: %.1f targets/s, %.2f MB/s",
+				this.nTargets, seconds, this.nTargets/seconds, this.nBytes/(1024.0*1024.0)/seconds));
+		LOG.info("previous build: "+this.nKept+" target(s) kept, "+this.nReset+" reset, "+this.nDeleted+" removed");
+		if(statCache!=null) LOG.info(this.nUpToDate+" target(s) up to date");
+		}
+	}
+
+/** returns the directory of the durations of the tasks or null, see option --history of 'build' */
+private File getHistoryDirectory(final Transaction txn) {
+	final DatabaseEntry key=new DatabaseEntry();
+	final DatabaseEntry data=new DatabaseEntry();
+	StringBinding.stringToEntry(HISTORYKEY, key);
+	if(this.metaDatabase.get(txn, key, data, LockMode.DEFAULT)!=OperationStatus.SUCCESS) return null;
+	return new File(StringBinding.entryToString(data));
+	}
+
+/** returns the history of the durations of the tasks or null, see option --history of 'build'.
+ * It is opened on the first call and stays open until close(), e.g. for all the steps of 'watch' */
+private RuntimeHistory getHistory(final Transaction txn) {
+	if(this.historyOpened) return this.history;
+	this.historyOpened = true;
+	final File historyDir = getHistoryDirectory(txn);
+	if(historyDir==null) return null;
+	try {
+		this.history = new RuntimeHistory(historyDir, false);
+		}
+	catch(final DatabaseException err) {
+		/* e.g. the history is currently written by another workflow */
+		LOG.warn("Cannot open the history in "+historyDir+" for writing, the durations won't be saved : "+err.getMessage());
+		this.history = new RuntimeHistory(historyDir, true);
+		}
+	return this.history;
+	}
+
+/** save the durations of the tasks that were just completed in the history, if any */
+private void updateHistory(final Transaction txn,final List<Task> completedTasks) {
+	if(completedTasks.isEmpty()) return;
+	final RuntimeHistory history = getHistory(txn);
+	if(history==null) return;
+	for(final Task t: completedTasks) {
+		if(loadDefinition(txn, t)!=0) continue;
+		history.add(t);
+		}
+	}
+
+/** returns the targets of the graph in post-order: the prerequisites before the targets depending on them */
+private static List<Target> postOrder(final Collection<Target> targets) {
+	final List<Target> sorted = new ArrayList<>(targets.size());
+	final Set<String> seen = new HashSet<>(targets.size());
+	final Deque<Target> stack = new ArrayDeque<>();
+	final Deque<Iterator<Target>> iterators = new ArrayDeque<>();
+	for(final Target start: targets) {
+		if(!seen.add(start.getName())) continue;
+		stack.push(start);
+		iterators.push(start.getPrerequisites().iterator());
+		while(!stack.isEmpty()) {
+			final Iterator<Target> iter = iterators.peek();
+			if(iter.hasNext()) {
+				final Target prereq = iter.next();
+				if(seen.add(prereq.getName())) {
+					stack.push(prereq);
+					iterators.push(prereq.getPrerequisites().iterator());
+					}
+				}
+			else
+				{
+				iterators.pop();
+				sorted.add(stack.pop());
+				}
+			}
+		}
+	return sorted;
+	}
+
+/** parse the output of make in a thread while the tasks are written in the database */
+private int loadStream(final BufferedReader in,final TaskLoader loader) throws Exception {
+	final Task endOfStream = new Task("<END>");
+	final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(10000);
+	final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+	final Thread producer = new Thread(new Runnable() {
+		@Override
+		public void run() {
+			try {
+				final MakeStreamParser parser = new MakeStreamParser(in);
+				Task t;
+				while((t=parser.next())!=null) {
+					queue.put(t);
+					}
+				}
+			catch(final Exception err) {
+				errors.add(err);
+				}
+			finally {
+				try { queue.put(endOfStream);} catch(final InterruptedException err) {errors.add(err);}
+				}
+			}
+		},"make-parser");
+	producer.setDaemon(true);
+	LOG.info("Reading and inserting targets");
+	producer.start();
+	for(;;) {
+		final Task t = queue.take();
+		if(t==endOfStream) break;
+		if(loader.add(t)!=0) {
+			producer.interrupt();
+			return -1;
+			}
+		}
+	producer.join();
+	if(!errors.isEmpty()) {
+		LOG.error("Cannot parse the output of make", errors.get(0));
 		return -1;
+		}
+	return 0;
+	}
+
+private int build(final String argv[]) {
+	Transaction txn = null;
+	BufferedReader in = null;
+	RuntimeHistory history = null;
+	TaskLoader loader = null;
+	String makeExecutable="make";
+	try {
+		this.options.addOption(Option.builder(OPTION_MAKE_EXECUTABLE).
+				hasArg(true).
+				longOpt(OPTION_MAKE_EXECUTABLE).
+				argName("MAKE").
+				desc("make executable. Default: "+makeExecutable).
+				build());
+		
+		this.options.addOption(Option.builder(OPTION_MAKEFILEIN).
+				hasArg(true).
+				longOpt("makefile").
+				argName("DIR").
+				desc("debug Makefile").
+				build());
+		
+		this.options.addOption(Option.builder().
+				hasArg(false).
+				longOpt(OPTION_BULK_LOAD).
+				desc("bulk load for very large Makefiles: deferred write databases, the data are made durable once at the end").
+				build());
+		
+		this.options.addOption(Option.builder().
+				hasArg(false).
+				longOpt(OPTION_STREAM).
+				desc("don't build the whole graph in memory: the targets are stored while the output of make is read").
+				build());
+		
+		this.options.addOption(Option.builder().
+				hasArg(true).
+				longOpt(OPTION_HISTORY).
+				argName("DIR").
+				desc("directory of the durations of the tasks, shared by the workflows. The durations of the previous runs weight the priorities and the new ones are saved in it").
+				build());
+		addUpToDateOptions(this.options);
+		
+		final CommandLineParser parser = new DefaultParser();
+		this.cmdLine = parser.parse(this.options, argv);
+		final List<String> args= this.cmdLine.getArgList();
+		this.bulkLoad = this.cmdLine.hasOption(OPTION_BULK_LOAD);
+		
+		if(cmdLine.hasOption(OPTION_MAKE_EXECUTABLE)) {
+			makeExecutable = cmdLine.getOptionValue(OPTION_MAKE_EXECUTABLE);
+		}
+		
+		if(cmdLine.hasOption(OPTION_HELP)) {
+			return printHelp("build");
+		}
+		
+		if(parseWorkingDirectory()!=0) return -1;
+		if(parseUpToDateOptions(this.cmdLine)!=0) return -1;
+		
+		if(!cmdLine.hasOption(OPTION_MAKEFILEIN)) {
+			LOG.error("option -"+OPTION_MAKEFILEIN+" undefined");
+			return -1;
+		}
+		final File makefileIn =new File(cmdLine.getOptionValue(OPTION_MAKEFILEIN));
+		if( !makefileIn.exists()) {
+			System.err.println("Option -"+OPTION_MAKEFILEIN+" file doesn't exists: "+makefileIn);
+			return -1;
+		}
+		
+		if( !makefileIn.isFile()) {
+			System.err.println("Option -"+OPTION_MAKEFILEIN+" this is not a file : "+makefileIn);
+			return -1;
+		}
+		if( !makefileIn.isAbsolute() || makefileIn.getParentFile()==null) {
+			System.err.println("Option -"+OPTION_MAKEFILEIN+" path is not absolute : "+makefileIn);
+			return -1;
+		}
+		
+		
+		if(openEnvironement(txn, true,false)!=0) {
+			return -1;
+		}
+		this.baseDir = makefileIn.getParentFile();
+         
+     	final List<String> cmdargs= new ArrayList<>();
+		cmdargs.add(makeExecutable);
+		cmdargs.add("-ndr");
+		cmdargs.add("-C");
+		cmdargs.add(makefileIn.getParentFile().getPath());
+		cmdargs.add("-f");
+		cmdargs.add(makefileIn.getName());
+		for(final String arg: args) cmdargs.add(arg);
+		
+		LOG.info("invoking make :"+String.join(" ", cmdargs));
+		final ProcessBuilder procbuilder= new ProcessBuilder(cmdargs);
+		procbuilder.directory(makefileIn.getParentFile());
+
+		final Process proc = procbuilder.start();
+		final StreamBoozer sb = new StreamBoozer(proc.getErrorStream(),System.err,"[make]");
+		sb.start();
+	
+		final File historyDir = (this.cmdLine.hasOption(OPTION_HISTORY)?
+				new File(this.cmdLine.getOptionValue(OPTION_HISTORY)).getAbsoluteFile():
+				null);
+		history = (historyDir==null?null:new RuntimeHistory(historyDir, true));
+		loader = new TaskLoader(txn, history);
+		in = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+		if(this.cmdLine.hasOption(OPTION_STREAM)) {
+			if(loadStream(in, loader)!=0) return -1;
+			}
+		else
+			{
+			LOG.info("Reading graph");
+		    final Graph graph = Graph.parse(in);
+		    LOG.info("inserting targets");
+		    for(final Target t: postOrder(graph.getTargets())) {
+		    	if(loader.add(new Task(t))!=0) return -1;
+		    	}
+			}
+		IoUtils.close(in);in=null;
+		if(loader.flush()!=0) return -1;
+		LOG.info("removing the targets of the previous build that are not in the Makefile");
+		if(loader.removeMissingTargets()!=0) return -1;
+		LOG.info("computing the priorities");
+		if(loader.updatePriorities()!=0) return -1;
+         
+         LOG.info("inserting metadata");
+         final DatabaseEntry key = new DatabaseEntry();
+         final DatabaseEntry data = new DatabaseEntry();
+         StringBinding.stringToEntry( BASEDIRKEY,key);
+         StringBinding.stringToEntry(makefileIn.getParentFile().getPath(),data);
+         if( this.metaDatabase.put(txn, key, data) != OperationStatus.SUCCESS) {
+    		 LOG.error("Cannot insert "+BASEDIRKEY);
+    		 return -1;
+    	 	}
+         if(historyDir!=null) {
+        	 StringBinding.stringToEntry( HISTORYKEY,key);
+        	 StringBinding.stringToEntry(historyDir.getPath(),data);
+        	 if( this.metaDatabase.put(txn, key, data) != OperationStatus.SUCCESS) {
+        		 LOG.error("Cannot insert "+HISTORYKEY);
+        		 return -1;
+        	 	}
+         	}
+         LOG.info("writing the snapshot of the journal");
+         if(writeSnapshot(txn)!=0) return -1;
+         
+         if(this.bulkLoad) {
+        	 LOG.info("making the databases durable");
+        	 for(final Database db: new Database[]{
+        			 this.targetsDatabase, this.targetsByStatusDatabase, this.definitionsDatabase,
+        			 this.dependentsDatabase, this.readyDatabase, this.metaDatabase}) {
+        		 db.sync();
+        	 	}
+        	 this.environment.checkpoint(new CheckpointConfig().setForce(true));
+         }
+         
+         loader.report();
+		return 0;
+	} catch(Exception err) {
+		LOG.error("Boum", err);
+		return -1;
+	} finally {
+		IoUtils.close(history);
+		IoUtils.close(loader);
+		close();
+	}
+}
+
+
+protected abstract void kill(final Task t)  throws IOException;
+
+
+private int kill(final String argv[]) {
+Transaction txn = null;
+try {
+	this.options.addOption(Option.builder(OPTION_RESETFAILURE).
+			hasArg(false).
+			longOpt("reset").
+			desc("reset failure : ERROR -> UNDEFINED").
+			build()
+			);	
+
+	
+	final CommandLineParser parser = new DefaultParser();
+	this.cmdLine = parser.parse(this.options, argv);
+	
+	if(this.cmdLine.hasOption(OPTION_HELP)) {
+		printHelp("kill current running jobs");
+		return 0;
+	}
+	
+	if(!this.cmdLine.getArgList().isEmpty()) {
+		LOG.error("Illegal number of arguments");
+		return -1;
+	}
+	if(this.parseWorkingDirectory()!=0) return -1;
+	if(openEnvironement(txn, false,false)!=0) return -1;
+	
+	
+	final boolean resetfailure=this.cmdLine.hasOption(OPTION_RESETFAILURE);
+
+	
+	/* only RUNNING and ERROR tasks need to be visited. Get the failed tasks first
+	 * so the jobs killed below are not reset in the same call */
+	final List<String> failedTasks = (resetfailure ?
+			getTaskNamesByStatus(txn, TaskStatus.ERROR) :
+			new ArrayList<String>()
+			);
+	
+	for(final Task t: getTasksByStatus(txn, TaskStatus.RUNNING))
+		{
+		LOG.warn("killing " + t);
+		kill(t);
+		t.targetStatus = (resetfailure ? TaskStatus.ERROR : TaskStatus.TOBEDONE);
+		if (putTask(txn, t) != 0) return -1;
+		if (t.targetStatus == TaskStatus.TOBEDONE && setReady(txn, t, true) != 0) return -1;
+		}
+	
+	/* only the status changes: it is updated in place in the record */
+	final TaskView view = new TaskView(getTaskBinding());
+	final DatabaseEntry data = new DatabaseEntry();
+	for(final String targetName: failedTasks)
+		{
+		LOG.warn("Reset status of " + targetName);
+		if (getTaskView(txn, targetName, view, data) == null) {
+			LOG.error("Cannot get failed task "+targetName);
+			return -1;
+			}
+		view.setStatus(TaskStatus.TOBEDONE);
+		if (putTaskView(txn, view, TaskStatus.ERROR) != 0) return -1;
+		if (setReady(txn, view, true) != 0) return -1;
+		}
+	return 0;
+} catch(final Exception err) {
+	LOG.error("Boum", err);
+	return -1;
+} finally {
+	close();
+}
+}
+
+protected abstract int submitJob(final Task task);
+
+/** submit the ready tasks, sorted by priority. On success the tasks are RUNNING.
+ * On failure, the tasks that were submitted must be RUNNING and the others TOBEDONE.
+ * The default implementation submits the tasks one by one */
+protected int submitJobs(final List<Task> tasks) {
+	final Metrics.Histogram submitJobTime = this.metrics.histogram("mscheduler_submit_job_seconds",
+			"time of a call to submitJob", "backend", getClass().getSimpleName());
+	for(final Task task: tasks)
+		{
+		final long startNanos = System.nanoTime();
+		final int status = submitJob(task);
+		submitJobTime.observeSince(startNanos);
+		if(status!=0) {
+			task.targetStatus = TaskStatus.TOBEDONE;
+			return -1;
+			}
+		if(task.targetStatus!=TaskStatus.RUNNING) {
+			throw new IllegalStateException();
+			}
+		}
+	return 0;
+	}
+
+/** adds the option --journal of 'list' and 'eow' */
+private void addJournalOption() {
+	this.options.addOption(Option.builder().
+			hasArg(false).
+			longOpt(OPTION_JOURNAL).
+			desc("read the status of the tasks from the snapshot written by 'build' and the journal of the changes, "
+				+ "without opening the database. 'list' only prints the name, the process id and the status").
+			build());
+	}
+
+private int list(final String argv[]) {
+Cursor c = null;
+TaskListPrinter printer = null;
+final Transaction txn = null;
+try {
+	addJournalOption();
+	this.options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_LIST_STATUS).
+			argName("STATUS").
+			desc("only print the tasks having this status, uses the index of the status. Can be used several times, or comma separated. One of "+Arrays.toString(TaskStatus.values())).
+			build());
+	this.options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_LIST_NAME).
+			argName("GLOB").
+			desc("only print the tasks whose name matches this glob. '*' matches any string, including '/'. The tasks are only read from the first name matching the characters before the first wildcard").
+			build());
+	this.options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_LIST_PREREQUISITE_OF).
+			argName("TARGET").
+			desc("only print the prerequisites of this target").
+			build());
+	this.options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_LIST_FORMAT).
+			argName("FORMAT").
+			desc("output format: "+Arrays.toString(TaskListPrinter.Format.values())+". Default: tsv").
+			build());
+	this.options.addOption(Option.builder().
+			hasArg(false).
+			longOpt(OPTION_LIST_SUMMARY).
+			desc("only print the number of tasks per status").
+			build());
+	final CommandLineParser parser = new DefaultParser();
+	this.cmdLine = parser.parse(this.options, argv);
+	
+	if(this.cmdLine.hasOption(OPTION_HELP)) {
+		printHelp("List the tasks");
+		return 0;
+	}
+	
+	if(!this.cmdLine.getArgList().isEmpty()) {
+		LOG.error("Illegal number of arguments");
+		return -1;
+	}
+	final Set<TaskStatus> statuses = EnumSet.noneOf(TaskStatus.class);
+	TaskListPrinter.Format format = TaskListPrinter.Format.tsv;
+	try {
+		if(this.cmdLine.hasOption(OPTION_LIST_STATUS)) {
+			for(final String value: this.cmdLine.getOptionValues(OPTION_LIST_STATUS)) {
+				for(final String s: value.split("[,]")) {
+					if(!s.trim().isEmpty()) statuses.add(TaskStatus.valueOf(s.trim().toUpperCase()));
+					}
+				}
+			}
+		if(this.cmdLine.hasOption(OPTION_LIST_FORMAT)) {
+			format = TaskListPrinter.Format.valueOf(this.cmdLine.getOptionValue(OPTION_LIST_FORMAT));
+			}
+		}
+	catch(final IllegalArgumentException err) {
+		LOG.error("bad value for --"+OPTION_LIST_STATUS+" or --"+OPTION_LIST_FORMAT+": "+err.getMessage());
+		return -1;
+		}
+	final String prerequisiteOf = this.cmdLine.getOptionValue(OPTION_LIST_PREREQUISITE_OF);
+	
+	if(this.parseWorkingDirectory()!=0) return -1;
+	printer = new TaskListPrinter(format,
+			this.cmdLine.hasOption(OPTION_LIST_SUMMARY),
+			statuses,
+			this.cmdLine.getOptionValue(OPTION_LIST_NAME));
+	
+	if(this.cmdLine.hasOption(OPTION_JOURNAL)) {
+		if(prerequisiteOf!=null) {
+			LOG.error("--"+OPTION_LIST_PREREQUISITE_OF+" cannot be used with --"+OPTION_JOURNAL);
+			return -1;
+			}
+		for(final Journal.Entry e: Journal.replay(this.workingDirectory).values()) {
+			if(!printer.acceptStatus(e.status) || !printer.acceptName(e.name)) continue;
+			printer.print(e);
+			if(!printer.isOpen()) break;
+			}
+		return 0;
+		}
+	if(openEnvironement(txn, false,true)!=0) return -1;
+	
+	final long startNanos = System.nanoTime();
+	if(prerequisiteOf!=null) {
+		final Task target = getTask(txn, prerequisiteOf);
+		if(target==null) {
+			LOG.error("no such target "+prerequisiteOf);
+			return -1;
+			}
+		if(loadDefinition(txn, target)!=0) return -1;
+		for(final String prereqName: target.getPrerequisites()) {
+			if(!printer.acceptName(prereqName)) continue;
+			final Task t = getTask(txn, prereqName);
+			if(t==null) {
+				LOG.warn("no such prerequisite "+prereqName);
+				continue;
+				}
+			if(!printer.acceptStatus(t.targetStatus)) continue;
+			if(listTask(txn, printer, t)!=0) return -1;
+			if(!printer.isOpen()) break;
+			}
+		}
+	else if(printer.isSummary() && !this.cmdLine.hasOption(OPTION_LIST_NAME)) {
+		/* the number of duplicates in the index */
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry pKey=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		final SecondaryCursor sc = this.targetsByStatusDatabase.openCursor(txn, null);
+		c = sc;
+		for(final TaskStatus status: TaskStatus.values()) {
+			Task.statusToEntry(status, key);
+			if(sc.getSearchKey(key, pKey, data, LockMode.DEFAULT)==OperationStatus.SUCCESS) {
+				printer.count(status, sc.count());
+				}
+			}
+		}
+	else if(!statuses.isEmpty()) {
+		/* the index of the status */
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry pKey=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		final Task.Binding taskBinding = getTaskBinding();
+		final SecondaryCursor sc = this.targetsByStatusDatabase.openCursor(txn, null);
+		c = sc;
+		for(final TaskStatus status: statuses) {
+			Task.statusToEntry(status, key);
+			OperationStatus opStatus = sc.getSearchKey(key, pKey, data, LockMode.DEFAULT);
+			while(opStatus==OperationStatus.SUCCESS && printer.isOpen()) {
+				if(printer.acceptName(StringBinding.entryToString(pKey))) {
+					if(listTask(txn, printer, taskBinding.entryToObject(data))!=0) return -1;
+					}
+				opStatus = sc.getNextDup(key, pKey, data, LockMode.DEFAULT);
+				}
+			}
+		}
+	else
+		{
+		/* the names are sorted: start from the prefix of the glob. The record is only read if the name matches */
+		final String prefix = printer.getNamePrefix();
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry noData=new DatabaseEntry();
+		noData.setPartial(0, 0, true);
+		final DatabaseEntry data=new DatabaseEntry();
+		final Task.Binding taskBinding = getTaskBinding();
+		c = this.targetsDatabase.openCursor(txn,null);
+		OperationStatus opStatus;
+		if(prefix.isEmpty()) {
+			opStatus = c.getNext(key, noData, LockMode.DEFAULT);
+			}
+		else
+			{
+			StringBinding.stringToEntry(prefix, key);
+			opStatus = c.getSearchKeyRange(key, noData, LockMode.DEFAULT);
+			}
+		while(opStatus==OperationStatus.SUCCESS && printer.isOpen())
+			{
+			final String name = StringBinding.entryToString(key);
+			if(!name.startsWith(prefix)) break;
+			if(printer.acceptName(name)) {
+				if(c.getCurrent(key, data, LockMode.DEFAULT)!=OperationStatus.SUCCESS) {
+					LOG.error("Cannot read "+name);
+					return -1;
+					}
+				if(listTask(txn, printer, taskBinding.entryToObject(data))!=0) return -1;
+				}
+			opStatus = c.getNext(key, noData, LockMode.DEFAULT);
+			}
+		}
+	this.scanTargetsTime.observeSince(startNanos);
+	return 0;
+} catch(final Exception err) {
+	LOG.error("Boum", err);
+	return -1;
+} finally {
+	IoUtils.close(printer);
+	IoUtils.close(c);
+	close();
+}
+}
+
+/** print a task of 'list'. The definition is only read if it is printed */
+private int listTask(final Transaction txn,final TaskListPrinter printer,final Task t) {
+	if(!printer.isSummary() && loadDefinition(txn, t)!=0) return -1;
+	printer.print(t);
+	return 0;
+	}
+
+/** A StatusChecker will update task.targetStatus */
+protected abstract class StatusChecker implements Callable<Integer>
+	{
+	/** targetStatus will be updated by the checker */
+	protected final Task task;
+	protected StatusChecker(final Task task) {
+		this.task = task;
+		}
+	}
+
+/** A BulkStatusChecker will update task.targetStatus for many tasks at once.
+ * The tasks that could not be resolved must be added to 'unresolved', they will be
+ * checked one by one with a StatusChecker */
+protected abstract class BulkStatusChecker implements Callable<Integer>
+	{
+	/** targetStatus will be updated by the checker */
+	protected final List<Task> tasks;
+	/** tasks for which the status could not be found */
+	protected final List<Task> unresolved = new ArrayList<>();
+	protected BulkStatusChecker(final List<Task> tasks) {
+		this.tasks = tasks;
+		}
+	}
+
+/** creates a Status Checker for this scheduler */
+protected abstract StatusChecker createStatusChecker(final Task task);
+
+/** creates a Status Checker for many tasks. Returns null if this scheduler can only check the tasks one by one */
+protected BulkStatusChecker createBulkStatusChecker(final List<Task> tasks) {
+	return null;
+	}
+
+/** add the options controlling how the status of the jobs are checked */
+private void addStatusOptions() {
+	this.options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_STATUS_THREADS).
+			argName("N").
+			desc("max number of jobs checked concurrently. Default: "+this.statusThreads).
+			build()
+			);
+	this.options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_STATUS_TIMEOUT).
+			argName("SECONDS").
+			desc("timeout for checking the status of one job. Default: "+this.statusTimeoutSeconds).
+			build()
+			);
+	this.options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_POLL_INTERVAL).
+			argName("SECONDS").
+			desc("the jobs write their exit code in a file. The cluster is only queried for the jobs without such file, "
+				+ "at most once every SECONDS. Default: "+getDefaultPollInterval()).
+			build()
+			);
+	}
+
+private int parseStatusOptions() {
+	if(this.cmdLine.hasOption(OPTION_STATUS_THREADS)) {
+		this.statusThreads = Integer.parseInt(this.cmdLine.getOptionValue(OPTION_STATUS_THREADS));
+		if(this.statusThreads<1) {
+			LOG.error("bad value for --"+OPTION_STATUS_THREADS);
+			return -1;
+			}
+		}
+	if(this.cmdLine.hasOption(OPTION_STATUS_TIMEOUT)) {
+		this.statusTimeoutSeconds = Long.parseLong(this.cmdLine.getOptionValue(OPTION_STATUS_TIMEOUT));
+		if(this.statusTimeoutSeconds<1L) {
+			LOG.error("bad value for --"+OPTION_STATUS_TIMEOUT);
+			return -1;
+			}
+		}
+	this.pollIntervalSeconds = getDefaultPollInterval();
+	if(this.cmdLine.hasOption(OPTION_POLL_INTERVAL)) {
+		this.pollIntervalSeconds = Long.parseLong(this.cmdLine.getOptionValue(OPTION_POLL_INTERVAL));
+		if(this.pollIntervalSeconds<0L) {
+			LOG.error("bad value for --"+OPTION_POLL_INTERVAL);
+			return -1;
+			}
+		}
+	return 0;
+	}
+
+/** min delay in seconds between two queries of the cluster for the jobs without exit code file, see --poll-interval */
+protected long getDefaultPollInterval() {
+	return 300L;
+	}
+
+/** max number of cores used by the running jobs if --cores is not set, or -1 */
+protected int getDefaultCoreBudget() {
+	return -1;
+	}
+
+/** add the options of the make-style check of the files, used by 'build', 'run' and 'watch' */
+private void addUpToDateOptions(final Options options) {
+	options.addOption(Option.builder().
+			hasArg(false).
+			longOpt(OPTION_UP_TO_DATE).
+			desc("like make, a task whose file exists and is not older than the files of its prerequisites is COMPLETED without running").
+			build()
+			);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_STAT_THREADS).
+			argName("N").
+			desc("with --"+OPTION_UP_TO_DATE+", number of files whose modification time is read concurrently. Default: "+this.statThreads).
+			build()
+			);
+	}
+
+private int parseUpToDateOptions(final CommandLine cmdLine) {
+	if(cmdLine.hasOption(OPTION_STAT_THREADS)) {
+		this.statThreads = Integer.parseInt(cmdLine.getOptionValue(OPTION_STAT_THREADS));
+		if(this.statThreads<1) {
+			LOG.error("bad value for --"+OPTION_STAT_THREADS);
+			return -1;
+			}
+		}
+	if(cmdLine.hasOption(OPTION_UP_TO_DATE)) {
+		this.statCache = new StatCache(
+				Executors.newFixedThreadPool(this.statThreads, createStatusThreadFactory()),
+				this.statTime);
+		}
+	return 0;
+	}
+
+/** returns the file of a target, relative to the directory of the Makefile */
+private File getTargetFile(final String targetName) {
+	final File f = new File(targetName);
+	return f.isAbsolute()?f:new File(getBaseDirectory(),targetName);
+	}
+
+/** true if the file of the task exists and is not older than the files of its prerequisites, like make.
+ * Only called with --up-to-date. The definition must be loaded */
+private boolean isUpToDate(final Task task) throws IOException {
+	final long lastModified = this.statCache.lastModified(getTargetFile(task.getName()));
+	if(lastModified==StatCache.MISSING) return false;
+	for(final String prereqName: task.getPrerequisites()) {
+		final long prereqModified = this.statCache.lastModified(getTargetFile(prereqName));
+		if(prereqModified==StatCache.MISSING || prereqModified>lastModified) return false;
+		}
+	return true;
+	}
+
+/** add the options of 'run' and 'watch' */
+protected void addSchedulingOptions(final Options options) {
+	addUpToDateOptions(options);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_CORES).
+			argName("N").
+			desc("max number of cores used by the running jobs. The ready jobs are packed in the free cores, "
+				+ "the cores of a job are declared with '#MSUB -c N' or '#$ -pe ENV N' or guessed from its recipe. "
+				+ "If -j is not set, there is no limit on the number of jobs. Default: "+
+				(getDefaultCoreBudget()<1?"no limit":String.valueOf(getDefaultCoreBudget()))).
+			build()
+			);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_FUSE).
+			argName("N").
+			desc("run up to N cheap tasks in the same job, in dependency order. Each task still has its own status. Default: "+this.fuseSize+" (no fusion)").
+			build()
+			);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_FUSE_MAX_LENGTH).
+			argName("CHARS").
+			desc("with --"+OPTION_FUSE+", a task that never ran is cheap if its recipe has at most CHARS characters. Default: "+this.fuseMaxLength).
+			build()
+			);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_FUSE_MAX_SECONDS).
+			argName("SECONDS").
+			desc("with --"+OPTION_FUSE+", a task found in the history (see build --"+OPTION_HISTORY+") is cheap if it ran in at most SECONDS on average. Default: "+this.fuseMaxSeconds).
+			build()
+			);
+	}
+
+/** read the options of 'run' and 'watch', see addSchedulingOptions */
+protected int parseSchedulingOptions(final CommandLine cmdLine) {
+	if(parseUpToDateOptions(cmdLine)!=0) return -1;
+	this.coreBudget = getDefaultCoreBudget();
+	if(cmdLine.hasOption(OPTION_CORES)) {
+		this.coreBudget = Integer.parseInt(cmdLine.getOptionValue(OPTION_CORES));
+		if(this.coreBudget<1) {
+			LOG.error("bad value for --"+OPTION_CORES);
+			return -1;
+			}
+		}
+	if(cmdLine.hasOption(OPTION_FUSE)) {
+		this.fuseSize = Integer.parseInt(cmdLine.getOptionValue(OPTION_FUSE));
+		if(this.fuseSize<0) {
+			LOG.error("bad value for --"+OPTION_FUSE);
+			return -1;
+			}
+		}
+	if(cmdLine.hasOption(OPTION_FUSE_MAX_LENGTH)) {
+		this.fuseMaxLength = Integer.parseInt(cmdLine.getOptionValue(OPTION_FUSE_MAX_LENGTH));
+		}
+	if(cmdLine.hasOption(OPTION_FUSE_MAX_SECONDS)) {
+		this.fuseMaxSeconds = Double.parseDouble(cmdLine.getOptionValue(OPTION_FUSE_MAX_SECONDS));
+		}
+	return 0;
+	}
+
+/** creates the threads of the status executor: virtual threads if the JVM supports them, daemon threads otherwise */
+private static ThreadFactory createStatusThreadFactory() {
+	try {
+		final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+		return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		}
+	catch(final Exception err) {
+		final ThreadFactory delegate = Executors.defaultThreadFactory();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = delegate.newThread(r);
+				t.setDaemon(true);
+				return t;
+				}
+			};
+		}
+	}
+
+/** get the shared pool running the StatusCheckers */
+private ExecutorService getStatusExecutor() {
+	if(this.statusExecutor==null) {
+		this.statusExecutor = Executors.newFixedThreadPool(this.statusThreads, createStatusThreadFactory());
+		}
+	return this.statusExecutor;
+	}
+
+/** update the status of the running tasks: first using the exit code files,
+ * then querying the cluster for the remaining tasks if the last query is older than pollIntervalSeconds.
+ * The tasks are only updated in memory, the caller saves them */
+private int updateJobStatus(final Transaction txn,final List<Task> tasks) {
+	final List<Task> remainTasks = new ArrayList<>(tasks.size());
+	for(final Task task: tasks) {
+		final Integer exitCode = (hasExitCodeFiles()?readExitCode(task):null);
+		if(exitCode==null) {
+			remainTasks.add(task);
+			}
+		else if(exitCode.intValue()==0) {
+			task.targetStatus = TaskStatus.COMPLETED;
+			}
+		else
+			{
+			LOG.info("job "+task+" exited with status "+exitCode);
+			task.targetStatus = TaskStatus.ERROR;
+			}
+		}
+	if(remainTasks.isEmpty()) return 0;
+	
+	final DatabaseEntry key=new DatabaseEntry();
+	final DatabaseEntry data=new DatabaseEntry();
+	StringBinding.stringToEntry(LASTPOLLKEY, key);
+	final long now = System.currentTimeMillis();
+	if(hasExitCodeFiles() && this.metaDatabase.get(txn, key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS) {
+		final long lastPoll = LongBinding.entryToLong(data);
+		if(now - lastPoll < TimeUnit.SECONDS.toMillis(this.pollIntervalSeconds)) {
+			LOG.info(remainTasks.size()+" job(s) without exit code. Cluster was queried less than "+this.pollIntervalSeconds+" seconds ago.");
+			return 0;
+			}
+		}
+	LongBinding.longToEntry(now, data);
+	if(this.metaDatabase.put(txn, key, data)!=OperationStatus.SUCCESS) {
+		LOG.error("Cannot update "+LASTPOLLKEY);
+		return -1;
+		}
+	return updateJobStatus(remainTasks);
+	}
+
+/** update the status of all the tasks, using a BulkStatusChecker if available.
+ * The tasks are only updated in memory, the caller saves them */
+protected int updateJobStatus(final List<Task> tasks) {
+	if(tasks.isEmpty()) return 0;
+	final BulkStatusChecker bulk = createBulkStatusChecker(tasks);
+	if(bulk!=null) {
+		LOG.info("checking the status of "+tasks.size()+" job(s)");
+		//a bulk query is slower than a single one, allow at least 60 seconds
+		final long seconds = Math.max(60L, this.statusTimeoutSeconds);
+		final Future<Integer> future = getStatusExecutor().submit(timed(bulk, this.bulkStatusCheckTime));
+		if(waitForStatus(future, System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds), "bulk status of "+tasks.size()+" job(s)")!=0) return -1;
+		return checkConcurrently(bulk.unresolved);
+		}
+	return checkConcurrently(tasks);
+	}
+
+protected int updateJobStatus(final Task task) {
+	return checkConcurrently(Collections.singletonList(task));
+	}
+
+/** run one StatusChecker per task in the shared pool */
+private int checkConcurrently(final List<Task> tasks) {
+	if(tasks.isEmpty()) return 0;
+	LOG.info("checking "+tasks.size()+" job(s) with "+this.statusThreads+" thread(s)");
+	final ExecutorService executor = getStatusExecutor();
+	final List<Future<Integer>> futures = new ArrayList<>(tasks.size());
+	for(final Task task: tasks) {
+		futures.add(executor.submit(timed(createStatusChecker(task), this.statusCheckTime)));
+		}
+	/* the checks are queued when all the threads are busy: give each 'round' of checks its own timeout */
+	final long rounds = (tasks.size() + this.statusThreads - 1) / this.statusThreads;
+	final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(rounds * this.statusTimeoutSeconds);
+	int return_status = 0;
+	for(int i=0;i< futures.size();++i) {
+		if(return_status!=0) {
+			futures.get(i).cancel(true);
+			continue;
+			}
+		return_status = waitForStatus(futures.get(i), deadline, "job status and "+tasks.get(i));
+		}
+	return return_status;
+	}
+
+/** observe the time of a status check in 'histogram' */
+private static Callable<Integer> timed(final Callable<Integer> checker,final Metrics.Histogram histogram) {
+	return new Callable<Integer>() {
+		@Override
+		public Integer call() throws Exception {
+			final long startNanos = System.nanoTime();
+			try {
+				return checker.call();
+				}
+			finally {
+				histogram.observeSince(startNanos);
+				}
+			}
+		};
+	}
+
+private int waitForStatus(final Future<Integer> future,final long deadlineNanos,final String what) {
+    try {
+    	final Integer return_status = future.get(Math.max(0L, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    	return return_status==null?-1:return_status.intValue();
+    	}
+    catch (TimeoutException e) {
+        this.statusTimeouts.inc();
+        future.cancel(true);
+        LOG.error("Timeout for gettting "+what);
+        return -1;
+    	}
+    catch (Exception e) {
+        future.cancel(true);
+        LOG.error("Failure:",e);
+        return -1;
+    	}
+	}
+
+/** check the running jobs and submit the ready ones.
+ * returns -1 on failure or the number of jobs that were completed or submitted */
+private int step(final Transaction txn,int max_jobs) throws IOException {
+	Cursor c = null;
+	final long startNanos = System.nanoTime();
+	try {
+		Task last_failed_job = null;
+		/* jobs that were completed since the last call */
+		final List<Task> completedTasks = new ArrayList<>();
+		
+		/* check there is no previous FAILED status */
+		last_failed_job = getFirstTaskByStatus(txn, TaskStatus.ERROR);
+		if(last_failed_job!=null) {
+			LOG.error("job "+last_failed_job+" failed.. Use -reset to reset values");
+			}
+		
+		/* get the jobs that were running the last time we checked. The status are
+		 * checked concurrently and saved in the database once all the checks are done */
+		final List<Task> runningTasks = getTasksByStatus(txn, TaskStatus.RUNNING);
+		if(updateJobStatus(txn, runningTasks)!=0) {
+			return -1;
+			}
+		
+		/* cores used by the jobs still running */
+		int usedCores = 0;
+		/* the fused tasks share the same job */
+		final Set<String> runningJobIds = new HashSet<>();
+		for(final Task jobInfo : runningTasks) {
+	        /* check new target status */
+			switch(jobInfo.targetStatus)
+				{
+				case RUNNING:
+					{
+					LOG.info("still running :" + jobInfo.getName());
+					if(jobInfo.processId!=null && !runningJobIds.add(jobInfo.processId)) break;
+					max_jobs = Math.max(max_jobs-1,0); 
+					if(this.coreBudget>0) usedCores += getCores(txn, jobInfo);
+					// we already know it's running, don't do anything
+					break;
+					}
+				case ERROR: 
+					{
+					LOG.info("job failed:" + jobInfo.getName());
+					last_failed_job = jobInfo;
+					jobInfo.targetStatus = TaskStatus.ERROR;
+					jobInfo.endMilliSec = System.currentTimeMillis();
+					readFusedTimes(jobInfo);
+					if(putTask(txn, jobInfo)!=0) return -1;
+					break;
+					}
+				case COMPLETED: 
+					{
+					LOG.info("job completed:" + jobInfo.getName());
+					jobInfo.targetStatus = TaskStatus.COMPLETED;
+					/* before the script is forgotten below */
+					final File exitFile = getExitCodeFile(jobInfo);
+					if( jobInfo.shellScriptFile!=null && jobInfo.shellScriptFile.exists())
+						{
+						LOG.warn("deleting "+jobInfo.shellScriptFile);
+						jobInfo.shellScriptFile.delete();
+						jobInfo.shellScriptFile=null;
+					
+						if(jobInfo.stdoutFile!=null && jobInfo.stdoutFile.exists())
+							{
+							jobInfo.stdoutFile.delete();
+							jobInfo.stdoutFile=null;
+							}
+						if(jobInfo.stderrFile!=null && jobInfo.stderrFile.exists())
+							{
+							jobInfo.stderrFile.delete();
+							jobInfo.stderrFile=null;
+							}								
+						}
+					jobInfo.endMilliSec = System.currentTimeMillis();
+					if(exitFile!=null && exitFile.exists()) {
+						/* the job ended when the exit code file was written, not when it was seen */
+						jobInfo.endMilliSec = Math.min(jobInfo.endMilliSec, exitFile.lastModified());
+						exitFile.delete();
+						}
+					readFusedTimes(jobInfo);
+					if(putTask(txn, jobInfo)!=0) return -1;
+					completedTasks.add(jobInfo);
+					break;
+					}
+				default: throw new IllegalStateException(jobInfo+" "+jobInfo.targetStatus);
+				}
+			}
+		
+		/* tell the dependents of the completed jobs that a prerequisite is available */
+		for(final Task completed : completedTasks) {
+			if(propagateCompleted(txn, completed)!=0) return -1;
+			}
+		updateHistory(txn, completedTasks);
+		
+		if(last_failed_job!=null) {
+			LOG.error("Exiting because : Job failed "+last_failed_job);
+			return -1;
+		}
+		
+		if(max_jobs<1) {
+			LOG.error("Exiting because : max_jobs < 1");
+			return completedTasks.size();
+		}
+		
+		/* the 'ready' database contains the TOBEDONE jobs having all their prerequisites COMPLETED */
+		List<Task> targetsToDo = new ArrayList<>();
+		final TaskView view = new TaskView(getTaskBinding());
+		final DatabaseEntry viewData = new DatabaseEntry();
+		/* with a budget of cores or the fusion of the tasks, the jobs are chosen among the first ready tasks */
+		final boolean fusion = this.fuseSize>1 && hasExitCodeFiles();
+		final int windowSize = (this.coreBudget>0 || fusion ? Math.max(max_jobs, CORES_WINDOW) : max_jobs);
+		final long readyNanos = System.nanoTime();
+		c = this.readyDatabase.openCursor(txn, null);
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS  && targetsToDo.size()< windowSize ) {
+			final String targetName = entryToReadyName(key);
+			if(getTaskView(txn, targetName, view, viewData)==null) {
+				LOG.error("Cannot get ready task "+targetName);
+				return -1;
+				}
+			if(view.getStatus()!=TaskStatus.TOBEDONE || view.getPendingPrerequisites()!=0) {
+				LOG.warn("not ready anymore: "+targetName);
+				if(c.delete()!=OperationStatus.SUCCESS) {
+					LOG.error("Cannot remove "+targetName+" from ready tasks");
+					return -1;
+					}
+				continue;
+				}
+			/* only the candidates are decoded */
+			targetsToDo.add(view.toTask());
+			}
+		c.close();c=null;
+		this.scanReadyTime.observeSince(readyNanos);
+
+		/* first cheap task of a fused job -> the other tasks of the job */
+		final Map<String,List<Task>> fusedTasks = new HashMap<>();
+		final RuntimeHistory history = (fusion ? getHistory(txn) : null);
+		if(fusion) {
+			targetsToDo = fuseCheapTasks(txn, history, targetsToDo, fusedTasks);
+			}
+		if(this.coreBudget>0) {
+			targetsToDo = packCores(txn, targetsToDo, this.coreBudget - usedCores, max_jobs);
+			LOG.info(usedCores+"/"+this.coreBudget+" cores used by the running jobs");
+			}
+		else if(targetsToDo.size()>max_jobs) {
+			targetsToDo = new ArrayList<>(targetsToDo.subList(0, max_jobs));
+			}
+		if(fusion) {
+			for(final Task task: targetsToDo) {
+				final List<Task> members = fusedTasks.get(task.getName());
+				if(members!=null && fuseDependents(txn, history, task, members)!=0) return -1;
+				}
+			}
+		
+		/* we found one failed job, exit with failure */
+		if( last_failed_job != null)
+			{
+			LOG.error("Found failure jobs e.g: "+last_failed_job+". exiting.");
+			return -1;
+			}
+		
+		LOG.info("submitting "+targetsToDo.size()+" job(s)");
+		if(getStopFile().exists()) {
+			LOG.warn("Stop file was detected "+getStopFile());
+			return -1;
+		}
+		final List<Task> jobsToSubmit = new ArrayList<>(targetsToDo.size());
+		for(final Task task: targetsToDo)
+			{
+			if(task.targetStatus!=TaskStatus.TOBEDONE) {
+				throw new IllegalStateException("shouldn't submit "+task);
+			}
+			/* the recipe is only needed now */
+			if(loadDefinition(txn, task)!=0) return -1;
+			}
+		if(this.statCache!=null) {
+			/* the files may have changed since the last step. All of them are read concurrently before the first check */
+			this.statCache.clear();
+			for(final Task task: targetsToDo) {
+				this.statCache.prefetch(getTargetFile(task.getName()));
+				for(final String prereqName: task.getPrerequisites()) {
+					this.statCache.prefetch(getTargetFile(prereqName));
+					}
+				}
+			}
+		for(final Task task: targetsToDo)
+			{
+			final List<Task> members = fusedTasks.get(task.getName());
+			if(task.shellScriptLines.isEmpty()) {
+				task.targetStatus=TaskStatus.COMPLETED;
+				}
+			else if(this.statCache!=null && (members==null || members.isEmpty()) && isUpToDate(task)) {
+				LOG.info("up to date: "+task.getName());
+				task.targetStatus=TaskStatus.COMPLETED;
+				this.upToDateTasks.inc();
+				}
+			else 
+				{
+				jobsToSubmit.add(task);
+				}
+			}
+		/* the recipe of the first task of a fused job runs the other tasks */
+		final Map<String,List<String>> recipes = new HashMap<>();
+		for(final Task task: jobsToSubmit)
+			{
+			final List<Task> members = fusedTasks.get(task.getName());
+			if(members==null || members.isEmpty()) continue;
+			recipes.put(task.getName(), new ArrayList<>(task.shellScriptLines));
+			writeFusedRecipe(task, members);
+			}
+		final long submitNanos = System.nanoTime();
+		final int submitStatus = (jobsToSubmit.isEmpty()?0:submitJobs(jobsToSubmit));
+		if(!jobsToSubmit.isEmpty()) {
+			this.metrics.histogram("mscheduler_submit_seconds",
+				"time of a call to submitJobs, all the ready jobs of a step", "backend", getClass().getSimpleName()).
+				observeSince(submitNanos);
+			}
+		
+		/* save the tasks that were submitted, even if a submission failed */
+		int n_submitted = 0;
+		for(final Task task: targetsToDo)
+			{
+			if(recipes.containsKey(task.getName())) {
+				task.shellScriptLines.clear();
+				task.shellScriptLines.addAll(recipes.get(task.getName()));
+				}
+			final List<Task> members = fusedTasks.get(task.getName());
+			if(task.targetStatus==TaskStatus.TOBEDONE) {
+				if(submitStatus==0) throw new IllegalStateException("not submitted "+task);
+				if(members!=null) {
+					for(final Task member: members) {
+						if(member.shellScriptFile!=null) member.shellScriptFile.delete();
+						}
+					}
+				continue;
+				}
+			LOG.info("updating "+task);
+			if(task.targetStatus==TaskStatus.RUNNING) {
+				this.metrics.counter("mscheduler_submitted_jobs_total", "jobs submitted", "backend", getClass().getSimpleName()).inc();
+				}
+			if(putTask(txn, task)!=0) return -1;
+			if(setReady(txn, task, false)!=0) return -1;
+			if(task.targetStatus==TaskStatus.COMPLETED && propagateCompleted(txn, task)!=0) return -1;
+			n_submitted++;
+			if(members==null || task.targetStatus!=TaskStatus.RUNNING) continue;
+			for(final Task member: members) {
+				member.processId = task.processId;
+				member.startMilliSec = task.startMilliSec;
+				member.targetStatus = TaskStatus.RUNNING;
+				LOG.info("updating fused "+member);
+				if(putTask(txn, member)!=0) return -1;
+				if(setReady(txn, member, false)!=0) return -1;
+				n_submitted++;
+				}
+			}
+		if(submitStatus!=0) {
+			this.metrics.counter("mscheduler_submit_failures_total", "calls to submitJobs that failed", "backend", getClass().getSimpleName()).inc();
+			return -1;
+			}
+		return completedTasks.size() + n_submitted;
+		}
+	finally {
+		IoUtils.close(c);
+		this.stepNanos += System.nanoTime() - startNanos;
+		this.stepTime.observeSince(startNanos);
+		}
+	}
+
+/** returns true if a task is cheap enough to be fused with other tasks in one job:
+ * the mean of its previous durations is lower than --fuse-max-seconds or, if it never ran,
+ * its recipe is shorter than --fuse-max-length. The definition must be loaded */
+private boolean isCheap(final RuntimeHistory history,final Task t) {
+	if(t.shellScriptLines.isEmpty() || t.getName().contains("<")) return false;
+	/* the resources asked by the headers of a member would be lost in the fused job */
+	for(final String line: t.shellScriptLines) {
+		if(line.startsWith("#$") || line.startsWith("#MSUB")) return false;
+		}
+	final RuntimeHistory.Stats stats = (history==null?null:history.get(t));
+	if(stats!=null && stats.count>0L) return stats.mean <= this.fuseMaxSeconds;
+	int length = 0;
+	for(final String line: t.shellScriptLines) length += line.length();
+	return length <= this.fuseMaxLength;
+	}
+
+/** group the cheap ready tasks by at most --fuse tasks. Returns the tasks to submit, sorted by priority:
+ * the tasks that are not cheap and the first task of each group. The other tasks of the groups are put in 'fusedTasks' */
+private List<Task> fuseCheapTasks(
+		final Transaction txn,
+		final RuntimeHistory history,
+		final List<Task> candidates,
+		final Map<String,List<Task>> fusedTasks) {
+	final List<Task> jobs = new ArrayList<>(candidates.size());
+	List<Task> members = null;
+	for(final Task t: candidates) {
+		if(loadDefinition(txn, t)!=0 || !isCheap(history, t)) {
+			jobs.add(t);
+			continue;
+			}
+		if(members==null || members.size()+1 >= this.fuseSize) {
+			members = new ArrayList<>();
+			fusedTasks.put(t.getName(), members);
+			jobs.add(t);
+			}
+		else
+			{
+			members.add(t);
+			}
+		}
+	return jobs;
 	}
-	if(this.parseWorkingDirectory()!=0) return -1;
-	openEnvironement(txn, false,true);
-	
-	c = this.targetsDatabase.openCursor(txn,null);
-	final DatabaseEntry key=new DatabaseEntry();
-	final DatabaseEntry data=new DatabaseEntry();
-	final Task.Binding taskBinding = new Task.Binding();
-	while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS)
-		{
-		final Task t = taskBinding.entryToObject(data);
-		if(t.getName().contains("<")) continue;//<ROOT>
-		
-		System.out.print(t.getName());
-		System.out.print('\t');
-		System.out.print(t.processId==null?"*":t.processId);
-		System.out.print('\t');
-		System.out.print(t.targetStatus);
-		System.out.print('\t');
-		System.out.print(t.md5());
-		System.out.print('\t');
-		System.out.print(t.duration());
-		System.out.print('\t');
-		System.out.print(t.shellScriptFile==null?"*":t.shellScriptFile);
-		
-		//System.out.print('\t');
-		///System.out.print(graph.mustRemake(t));
-		
-		System.out.print('\t');
-		System.out.print(String.join(" ", t.getPrerequisites()));
-		System.out.println();
+
+/** add to a fused job the cheap tasks whose pending prerequisites are all in this job, e.g. a chain of small tasks.
+ * They are appended after their prerequisites so the job runs the tasks in dependency order */
+private int fuseDependents(
+		final Transaction txn,
+		final RuntimeHistory history,
+		final Task head,
+		final List<Task> members) {
+	final Set<String> names = new HashSet<>();
+	names.add(head.getName());
+	for(final Task t: members) names.add(t.getName());
+	for(int i=-1;i< members.size() && members.size()+1 < this.fuseSize;++i) {
+		final Task prereq = (i==-1?head:members.get(i));
+		for(final String dependentName: getDependents(txn, prereq.getName())) {
+			if(members.size()+1 >= this.fuseSize) break;
+			if(names.contains(dependentName)) continue;
+			final Task t = getTask(txn, dependentName);
+			if(t==null) {
+				LOG.error("Cannot get dependent "+dependentName+" of "+prereq);
+				return -1;
+				}
+			if(t.targetStatus!=TaskStatus.TOBEDONE) continue;
+			if(loadDefinition(txn, t)!=0) return -1;
+			if(!isCheap(history, t)) continue;
+			int n_in_job = 0;
+			for(final String p: t.getPrerequisites()) {
+				if(names.contains(p)) n_in_job++;
+				}
+			if(n_in_job!=t.pendingPrerequisites) continue;
+			names.add(t.getName());
+			members.add(t);
+			}
 		}
 	return 0;
-} catch(final Exception err) {
-	LOG.error("Boum", err);
-	return -1;
-} finally {
-	IoUtils.close(c);
-	close();
-}
-}
+	}
 
-/** A StatusChecker will update task.targetStatus */
-protected abstract class StatusChecker implements Callable<Integer>
-	{
-	/** targetStatus will be updated by the checker */
-	protected final Task task;
-	protected StatusChecker(final Task task) {
-		this.task = task;
+/** file where a fused job writes when a task of the job started and ended, see readFusedTimes */
+private File getFusedTimesFile(final Task task) {
+	return new File(getWorkingDirectory(), "tmp."+task.md5()+".fused.times");
+	}
+
+/** set the start, and the end if known, of a task run by a fused job, written by the job in getFusedTimesFile.
+ * Without it, a task would be charged the time of the tasks run before it in the job and the head the time of the whole job */
+private void readFusedTimes(final Task task) {
+	final File timesFile = getFusedTimesFile(task);
+	if(!timesFile.exists()) return;
+	BufferedReader in = null;
+	try {
+		in = new BufferedReader(new FileReader(timesFile));
+		final String line = in.readLine();
+		final String tokens[] = (line==null?new String[0]:line.trim().split("\\s+"));
+		if(tokens.length>0 && !tokens[0].isEmpty()) {
+			task.startMilliSec = TimeUnit.SECONDS.toMillis(Long.parseLong(tokens[0]));
+			}
+		if(tokens.length>1) {
+			task.endMilliSec = TimeUnit.SECONDS.toMillis(Long.parseLong(tokens[1]));
+			}
+		}
+	catch(final Exception err) {
+		LOG.warn("cannot read the times of "+task+" in "+timesFile,err);
+		}
+	finally {
+		IoUtils.close(in);
+		timesFile.delete();
 		}
 	}
 
-/** creates a Status Checker for this scheduler */
-protected abstract StatusChecker createStatusChecker(final Task task);
+/** the fused job is submitted with the first task: its recipe runs in a sub-shell and is followed by the script of each
+ * other task, that writes its own exit code file. Once a task failed, the following tasks are not run and fail.
+ * The start and the end of each task are written in getFusedTimesFile.
+ * The job exits with the exit code of its first task */
+private void writeFusedRecipe(final Task head,final List<Task> members) throws IOException {
+	for(final Task member: members) {
+		member.shellScriptFile = File.createTempFile("tmp.", ".fused.bash",getWorkingDirectory());
+		member.stdoutFile = new File(member.shellScriptFile.getPath()+".stdout");
+		member.stderrFile = new File(member.shellScriptFile.getPath()+".stderr");
+		final PrintWriter pw = new PrintWriter(member.shellScriptFile);
+		pw.println("#!/bin/bash");
+		printExitCodeTrap(pw, member);
+		pw.println("cd '"+getBaseDirectory()+"' ;");
+		for(final String line: member.shellScriptLines) pw.println(line);
+		pw.flush();
+		if(pw.checkError()) {
+			pw.close();
+			throw new IOException("Cannot write "+member.shellScriptFile);
+			}
+		pw.close();
+		}
+	
+	final List<String> lines = new ArrayList<>();
+	int i=0;
+	/* keep the headers of the recipe, e.g. '#$' or '#MSUB' */
+	while(i< head.shellScriptLines.size() && head.shellScriptLines.get(i).startsWith("#")) {
+		lines.add(head.shellScriptLines.get(i));
+		i++;
+		}
+	lines.add("__fused_errexit=0 ; case \"$-\" in *e*) __fused_errexit=1 ;; esac ; set +e");
+	lines.add("__fused_start=$(date +%s)");
+	lines.add("( if [ ${__fused_errexit} -eq 1 ] ; then set -e ; fi");
+	lines.addAll(head.shellScriptLines.subList(i, head.shellScriptLines.size()));
+	lines.add(")");
+	lines.add("__fused_status=$?");
+	lines.add("echo \"${__fused_start} $(date +%s)\" > '"+getFusedTimesFile(head).getPath()+"'");
+	lines.add("__fused_failed=${__fused_status}");
+	for(final Task member: members) {
+		final File exitFile = getExitCodeFile(member);
+		/* the start is written before the member runs: its end is the time of its exit code file */
+		lines.add("if [ ${__fused_failed} -eq 0 ] ; then date +%s > '"+getFusedTimesFile(member).getPath()+"' ; bash '"+member.shellScriptFile.getPath()+"' > '"+
+				member.stdoutFile.getPath()+"' 2> '"+member.stderrFile.getPath()+"' || __fused_failed=1 ; "+
+				"else echo 1 > '"+exitFile.getPath()+".tmp' && mv '"+exitFile.getPath()+".tmp' '"+exitFile.getPath()+"' ; fi");
+		}
+	lines.add("exit ${__fused_status}");
+	head.shellScriptLines.clear();
+	head.shellScriptLines.addAll(lines);
+	}
 
-protected int updateJobStatus(final Task task) {
-	final StatusChecker call  =  createStatusChecker(task);
-	final ExecutorService executor = Executors.newSingleThreadExecutor();
-	final Future<Integer> future = executor.submit(call);
-	int return_status = -1;
+/** returns the number of cores of a task, at most the budget of cores so it can be run */
+private int getCores(final Transaction txn,final Task t) {
+	if(t.cores<=0) {
+		/* record written before the cores were stored */
+		if(loadDefinition(txn, t)!=0) return 1;
+		t.cores = getCores(t);
+		}
+	return Math.min(t.cores, this.coreBudget);
+	}
 
-    try {
-    	//allow 10 seconds to get status
-    	return_status = future.get(10, TimeUnit.SECONDS);
-    	
-    	return return_status;
-    	}
-    catch (TimeoutException e) {
-        future.cancel(true);
-        LOG.error("Timeout for gettting job status and "+task);
-        return -1;
-    	}
-    catch (Exception e) {
-        future.cancel(true);
-        LOG.error("Failure:",e);
-        return -1;
-    	}
-    finally
-    	{
-    	executor.shutdown();
-    	}
+/** choose the tasks to submit among the ready ones, sorted by priority, using a best-fit heuristic:
+ * the task using the most cores that fits in the free cores is taken first. So the tasks using many cores
+ * get the cores as soon as they are free and the small tasks fill the remaining ones */
+private List<Task> packCores(final Transaction txn,final List<Task> candidates,int freeCores,final int max_jobs) {
+	final List<Task> remaining = new ArrayList<>(candidates);
+	final List<Task> selected = new ArrayList<>();
+	while(freeCores>0 && selected.size()< max_jobs) {
+		Task best = null;
+		int bestCores = 0;
+		for(final Task t: remaining) {
+			final int n = getCores(txn, t);
+			if(n<=freeCores && n>bestCores) {
+				best = t;
+				bestCores = n;
+				}
+			}
+		if(best==null) break;
+		remaining.remove(best);
+		selected.add(best);
+		freeCores -= bestCores;
+		}
+	return selected;
 	}
 
 private int runstep(final String argv[]) {
 	final Transaction txn=null;
-	Cursor c = null;
 	int max_jobs = 1;
 	try {
 		
@@ -550,6 +2637,8 @@ private int runstep(final String argv[]) {
 				desc("specify number of parallel jobs").
 				build()
 				);	
+		addStatusOptions();
+		addSchedulingOptions(this.options);
 		
 		final CommandLineParser parser = new DefaultParser();
 		this.cmdLine = parser.parse(this.options, argv);		
@@ -568,193 +2657,78 @@ private int runstep(final String argv[]) {
 		if(this.cmdLine.hasOption(OPTION_N_JOBS)) {
 			max_jobs = Integer.parseInt(this.cmdLine.getOptionValue(OPTION_N_JOBS));
 		}
+		if(parseStatusOptions()!=0) return -1;
+		if(parseSchedulingOptions(this.cmdLine)!=0) return -1;
+		if(this.coreBudget>0 && !this.cmdLine.hasOption(OPTION_N_JOBS)) max_jobs = this.coreBudget;
 		
 		
 		
 		if(this.parseWorkingDirectory()!=0) return -1;
 		if(openEnvironement(txn, false,false)!=0) return -1;
 
-		Task last_failed_job = null;
+		if(step(txn, max_jobs)<0) return -1;
+		LOG.info("exiting SUCCESS");	
 		
-		/* loop over jobs, check there is no previous FAILED status */
-		c = this.targetsDatabase.openCursor(txn, null);
-		final Task.Binding taskBinding = new Task.Binding();
-		DatabaseEntry key=new DatabaseEntry();
-		DatabaseEntry data=new DatabaseEntry();
-		while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS) {
-			final Task jobInfo = taskBinding.entryToObject(data);
-			if(jobInfo.getName().contains("<")) continue;//<ROOT>
-			switch(jobInfo.targetStatus)
-				{
-				case TOBEDONE: break;
-				case COMPLETED: break;
-				case ERROR:
-					last_failed_job = jobInfo;
-					LOG.error("job "+jobInfo+" failed.. Use -reset to reset values");
-					break;
-				/* last time we checked, the job was running */
-				case RUNNING:
-					{
-					LOG.info("checking if job is running "+jobInfo);
-					if(updateJobStatus(jobInfo)!=0) {
-						return -1;
-						}
-			        /* check new target status */
-					switch(jobInfo.targetStatus)
-						{
-						case RUNNING:
-							{
-							LOG.info("still running :" + jobInfo.getName());
-							max_jobs = Math.max(max_jobs-1,0); 
-							// we already know it's running, don't do anything
-							// jobInfo.targetStatus  =  TargetStatus.RUNNING;
-							// graph.persist(jobInfo);
-							break;
-							}
-						case ERROR: 
-							{
-							LOG.info("job failed:" + jobInfo.getName());
-							last_failed_job = jobInfo;
-							jobInfo.targetStatus = TaskStatus.ERROR;
-							jobInfo.endMilliSec = System.currentTimeMillis();
-							taskBinding.objectToEntry(jobInfo, data);
-							if(c.putCurrent(data)!=OperationStatus.SUCCESS) {
-								LOG.error("Cannot update status of "+jobInfo);
-								return -1;
-								}
-							break;
-							}
-						case COMPLETED: 
-							{
-							LOG.info("job completed:" + jobInfo.getName());
-							jobInfo.targetStatus = TaskStatus.COMPLETED;
-							if( jobInfo.shellScriptFile!=null && jobInfo.shellScriptFile.exists())
-								{
-								LOG.warn("deleting "+jobInfo.shellScriptFile);
-								jobInfo.shellScriptFile.delete();
-								jobInfo.shellScriptFile=null;
-								
-								if(jobInfo.stdoutFile!=null && jobInfo.stdoutFile.exists())
-									{
-									jobInfo.stdoutFile.delete();
-									jobInfo.stdoutFile=null;
-									}
-								if(jobInfo.stderrFile!=null && jobInfo.stderrFile.exists())
-									{
-									jobInfo.stderrFile.delete();
-									jobInfo.stderrFile=null;
-									}								
-								}
-							jobInfo.endMilliSec = System.currentTimeMillis();
-							
-							taskBinding.objectToEntry(jobInfo, data);
-							if(c.putCurrent(data)!=OperationStatus.SUCCESS) {
-								LOG.error("Cannot update status of "+jobInfo);
-								return -1;
-								}
-							break;
-							}
-						default: throw new IllegalStateException(jobInfo+" "+jobInfo.targetStatus);
-						}
-					break;
-					}
-				default: throw new IllegalStateException(jobInfo+" "+jobInfo.targetStatus);
-				}
-				
+
+		return 0;
+	} catch(Exception err) {
+		LOG.error("Boum", err);
+		return -1;
+	} finally {
+		close();
+	}
+}
+
+
+/** returns true if all the jobs are COMPLETED */
+private boolean isEndOfWorkflow(final Transaction txn) {
+	for(final TaskStatus status : new TaskStatus[]{TaskStatus.TOBEDONE,TaskStatus.ERROR,TaskStatus.RUNNING})
+		{
+		final String targetName = getFirstTaskNameByStatus(txn, status);
+		if(targetName!=null) {
+			LOG.info("workflow requires job: "+targetName);
+			return false;
 			}
-		c.close();c=null;
-		
-		if(last_failed_job!=null) {
-			LOG.error("Exiting because : Job failed "+last_failed_job);
-			return -1;
 		}
+	return true;
+	}
+
+private int runeow(final String argv[]) {
+	final Transaction txn=null;
+	try {
 		
-		if(max_jobs<1) {
-			LOG.error("Exiting because : max_jobs < 1");
+		addJournalOption();
+		final CommandLineParser parser = new DefaultParser();
+		this.cmdLine = parser.parse(this.options, argv);		
+		
+		if(this.cmdLine.hasOption(OPTION_HELP)) {
+			printHelp("Test the whole workflow. Returns 0 if more job needs to be run");
 			return 0;
 		}
 		
-		final List<Task> targetsToDo = new ArrayList<>();
-		c = this.targetsDatabase.openCursor(txn, null);
-		key=new DatabaseEntry();
-		data=new DatabaseEntry();
-		while(c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS  && targetsToDo.size()< max_jobs ) {
-			final Task t = taskBinding.entryToObject(data);
-			if(t.getName().contains("<")) continue;//<ROOT>
-			if(t.targetStatus==TaskStatus.COMPLETED || t.targetStatus==TaskStatus.RUNNING) continue;
-			if(t.targetStatus==TaskStatus.ERROR) {
-				LOG.warn("Uhhh??");
-				return -1;
-				}
-			if(t.targetStatus!=TaskStatus.TOBEDONE) {
-				LOG.warn("Uhhh??");
-				return -1;
-				}
-			boolean ok=true;
-			final DatabaseEntry key2=new DatabaseEntry();
-			final DatabaseEntry data2=new DatabaseEntry();
-			for(final String prereqName: t.getPrerequisites()) {
-				StringBinding.stringToEntry(prereqName, key2);
-				if(this.targetsDatabase.get(txn, key2, data2, LockMode.DEFAULT)!=OperationStatus.SUCCESS) {
-					LOG.error("Cannot get prerequsiste "+prereqName+" from "+t);
-					return -1;
-				}
-				final Task t2 = taskBinding.entryToObject(data2);
-				switch(t2.targetStatus) {
-					case COMPLETED: break;
-					case ERROR: ok = false; break;
-					case RUNNING: ok= false; break;
-					case TOBEDONE: ok=false; break;
-					default: throw new IllegalStateException("err");
-					}
-				if(!ok) break;
-			}
-			
-			if(!ok) continue;
-			targetsToDo.add(t);
-			}
-		c.close();c=null;
 		
-		/* we found one failed job, exit with failure */
-		if( last_failed_job != null)
-			{
-			LOG.error("Found failure jobs e.g: "+last_failed_job+". exiting.");
+		if(!this.cmdLine.getArgList().isEmpty()) {
+			LOG.error("Illegal number of arguments");
 			return -1;
-			}
+		}
 		
-		LOG.info("submitting "+targetsToDo.size()+" job(s)");
-		for(final Task task: targetsToDo)
-			{
-			if(getStopFile().exists()) {
-				LOG.warn("Stop file was detected "+getStopFile());
-				return -1;
-			}
-			
-			if(task.targetStatus!=TaskStatus.TOBEDONE) {
-				throw new IllegalStateException("shouldn't submit "+task);
-			}
-			if(task.shellScriptLines.isEmpty()) {
-				task.targetStatus=TaskStatus.COMPLETED;
-				}
-			else 
-				{
-				if(submitJob(task)!=0) return -1;
-				if(task.targetStatus!=TaskStatus.RUNNING) {
-					throw new IllegalStateException();
+		if(this.parseWorkingDirectory()!=0) return -1;
+		if(this.cmdLine.hasOption(OPTION_JOURNAL)) {
+			for(final Journal.Entry e: Journal.replay(this.workingDirectory).values()) {
+				if(e.status!=TaskStatus.COMPLETED) {
+					LOG.info("workflow requires job: "+e.name+" "+e.status);
+					LOG.info("eow returns : -1");
+					return -1;
 					}
 				}
-			LOG.info("updating "+task);
-			StringBinding.stringToEntry(task.getName(), key);
-			taskBinding.objectToEntry(task, data);
-			if(this.targetsDatabase.put(txn, key, data)!=OperationStatus.SUCCESS) {
-				LOG.error("Cannot update "+task);
-				return -1;
-				}			
+			LOG.info("eow returns : 0");
+			return 0;
 			}
-		LOG.info("exiting SUCCESS");	
-		
+		if(openEnvironement(txn, false,true)!=0) return -1;
 
-		return 0;
+		final int return_status= isEndOfWorkflow(txn)?0:-1;
+		LOG.info("eow returns : "+ return_status);
+		return return_status;
 	} catch(Exception err) {
 		LOG.error("Boum", err);
 		return -1;
@@ -764,70 +2738,201 @@ private int runstep(final String argv[]) {
 }
 
 
-private int runeow(final String argv[]) {
+
+/** wakes up the 'watch' loop as soon as a job writes its exit code file in the working directory.
+ * inotify doesn't see the files written by the other hosts of a network filesystem: in that case
+ * the loop still wakes up after the usual delay */
+private class CompletionListener implements Closeable {
+	private final WatchService watchService;
+	CompletionListener() throws IOException {
+		this.watchService = FileSystems.getDefault().newWatchService();
+		getWorkingDirectory().toPath().register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE);
+		}
+	
+	/** wait at most 'seconds' for an exit code file or a call to notifyJobExit. returns true if one of them happened */
+	boolean await(final long seconds) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		for(;;) {
+			if(jobExited.getAndSet(false)) return true;
+			final long remain = deadline - System.nanoTime();
+			if(remain<=0L) return false;
+			/* wake up every second to check jobExited */
+			final WatchKey key = this.watchService.poll(Math.min(remain, TimeUnit.SECONDS.toNanos(1L)), TimeUnit.NANOSECONDS);
+			if(key==null) continue;
+			boolean found = false;
+			for(final WatchEvent<?> evt: key.pollEvents()) {
+				if(evt.kind()==StandardWatchEventKinds.OVERFLOW ||
+					String.valueOf(evt.context()).endsWith(EXIT_CODE_SUFFIX)) {
+					found = true;
+					}
+				}
+			key.reset();
+			if(found) return true;
+			}
+		}
+	
+	@Override
+	public void close() throws IOException {
+		this.watchService.close();
+		}
+	}
+
+/** run the workflow in one process: check and submit the jobs until the workflow is
+ * completed, a job failed or the STOP file is created. The BDB environment remains open.
+ * The delay between two steps is doubled each time nothing happened.
+ */
+private int watch(final String argv[]) {
 	final Transaction txn=null;
-	Cursor c = null;
+	CompletionListener listener = null;
+	int max_jobs = 1;
+	long minInterval = 5L;
+	long maxInterval = 120L;
 	try {
-		
+		this.options.addOption(Option.builder(OPTION_N_JOBS).
+				hasArg(true).
+				longOpt("jobs").
+				desc("specify number of parallel jobs").
+				build()
+				);	
+		this.options.addOption(Option.builder().
+				hasArg(true).
+				longOpt(OPTION_MIN_INTERVAL).
+				argName("SECONDS").
+				desc("min delay between two steps. Default: "+minInterval).
+				build()
+				);
+		this.options.addOption(Option.builder().
+				hasArg(true).
+				longOpt(OPTION_MAX_INTERVAL).
+				argName("SECONDS").
+				desc("max delay between two steps. Default: "+maxInterval).
+				build()
+				);
+		addStatusOptions();
+		addSchedulingOptions(this.options);
 		
 		final CommandLineParser parser = new DefaultParser();
 		this.cmdLine = parser.parse(this.options, argv);		
 		
 		if(this.cmdLine.hasOption(OPTION_HELP)) {
-			printHelp("Test the whole workflow. Returns 0 if more job needs to be run");
+			printHelp("Execute the steps until the end of the workflow");
 			return 0;
 		}
 		
-		
 		if(!this.cmdLine.getArgList().isEmpty()) {
 			LOG.error("Illegal number of arguments");
 			return -1;
 		}
 		
+		if(this.cmdLine.hasOption(OPTION_N_JOBS)) {
+			max_jobs = Integer.parseInt(this.cmdLine.getOptionValue(OPTION_N_JOBS));
+		}
+		if(this.cmdLine.hasOption(OPTION_MIN_INTERVAL)) {
+			minInterval = Long.parseLong(this.cmdLine.getOptionValue(OPTION_MIN_INTERVAL));
+		}
+		if(this.cmdLine.hasOption(OPTION_MAX_INTERVAL)) {
+			maxInterval = Long.parseLong(this.cmdLine.getOptionValue(OPTION_MAX_INTERVAL));
+		}
+		if(minInterval<1L || maxInterval<minInterval) {
+			LOG.error("bad values for --"+OPTION_MIN_INTERVAL+"/--"+OPTION_MAX_INTERVAL);
+			return -1;
+		}
+		if(parseStatusOptions()!=0) return -1;
+		if(parseSchedulingOptions(this.cmdLine)!=0) return -1;
+		if(this.coreBudget>0 && !this.cmdLine.hasOption(OPTION_N_JOBS)) max_jobs = this.coreBudget;
+		
 		if(this.parseWorkingDirectory()!=0) return -1;
-		if(openEnvironement(txn, false,true)!=0) return -1;
-
-		int return_status= 0;
+		if(openEnvironement(txn, false,false)!=0) return -1;
 		
-		/* loop over jobs, check there is no previous FAILED status */
-		c = this.targetsDatabase.openCursor(txn, null);
-		final Task.Binding taskBinding = new Task.Binding();
-		DatabaseEntry key=new DatabaseEntry();
-		DatabaseEntry data=new DatabaseEntry();
-		while(
-			return_status==0 && 
-			c.getNext(key, data, LockMode.DEFAULT)==OperationStatus.SUCCESS) {
-			final Task jobInfo = taskBinding.entryToObject(data);
-			if(jobInfo.getName().contains("<")) continue;//<ROOT>
-			switch(jobInfo.targetStatus)
-				{
-				case COMPLETED: break;
-				case TOBEDONE: 
-				case ERROR:
-				case RUNNING:
-					{
-					LOG.info("workflow requires job: "+jobInfo);
-					return_status = -1;
-					break;
-					}
-				default: throw new IllegalStateException(jobInfo+" "+jobInfo.targetStatus);
+		if(hasExitCodeFiles()) {
+			listener = new CompletionListener();
+			}
+		
+		long interval = minInterval;
+		for(;;) {
+			if(getStopFile().exists()) {
+				LOG.warn("Stop file was detected "+getStopFile());
+				return -1;
+				}
+			final int n_changes = step(txn, max_jobs);
+			if(n_changes<0) return -1;
+			if(isEndOfWorkflow(txn)) {
+				LOG.info("end of workflow");
+				return 0;
+				}
+			/* make the changes visible to the other processes, e.g. 'list' */
+			this.environment.sync();
+			if(this.journal!=null) this.journal.flush();
+			updateTaskGauges();
+			writeMetrics();
+			
+			interval = (n_changes>0 ? minInterval : Math.min(maxInterval, interval*2L));
+			LOG.info("waiting "+interval+" second(s)");
+			if(listener==null) {
+				Thread.sleep(TimeUnit.SECONDS.toMillis(interval));
+				}
+			else if(listener.await(interval)) {
+				LOG.info("a job has exited");
 				}
-				
 			}
-		c.close();c=null;
-		LOG.info("eow returns : "+ return_status);
-		return return_status;
 	} catch(Exception err) {
 		LOG.error("Boum", err);
 		return -1;
 	} finally {
+		IoUtils.close(listener);
 		close();
 	}
 }
 
+/** runs a command, package-private for the benchmarks. The metrics are published in JMX while it runs
+ * and written in the working directory at the end by the commands changing the workflow: the read-only
+ * commands 'list' and 'eow' must not overwrite the metrics of a running 'watch' */
+int instanceMain(final String[] args) {
+	this.metrics.register();
+	try {
+		return runCommand(args);
+		}
+	finally {
+		this.metrics.unregister();
+		if(args.length>0 && isWritingMetrics(args[0])) writeMetrics();
+		}
+	}
+
+/** returns true if the command changes the workflow and writes its metrics */
+private static boolean isWritingMetrics(final String command) {
+	return command.equals("build") || command.equals("run") || command.equals("watch") || command.equals("kill");
+	}
+
+/** write the metrics in the working directory, if known */
+private void writeMetrics() {
+	if(this.workingDirectory==null || !this.workingDirectory.isDirectory()) return;
+	this.metrics.write(new File(this.workingDirectory, METRICS_FILE));
+	}
 
+/** count the tasks of each status for the metrics */
+private void updateTaskGauges() {
+	SecondaryCursor c = null;
+	try {
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry pKey=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		data.setPartial(0, 0, true);
+		c = this.targetsByStatusDatabase.openCursor(null, null);
+		for(final TaskStatus status: TaskStatus.values()) {
+			Task.statusToEntry(status, key);
+			final int n = (c.getSearchKey(key, pKey, data, LockMode.DEFAULT)==OperationStatus.SUCCESS?c.count():0);
+			this.metrics.gauge("mscheduler_tasks", "number of tasks per status", "status", status.name()).set(n);
+			}
+		}
+	catch(final DatabaseException err) {
+		LOG.warn("Cannot count the tasks per status", err);
+		}
+	finally {
+		IoUtils.close(c);
+		}
+	}
 
-private int instanceMain(final String[] args) {
+private int runCommand(final String[] args) {
 
 	if(args.length<1) {
 		System.err.println("Usage: ");
@@ -835,6 +2940,7 @@ private int instanceMain(final String[] args) {
 		System.err.println(" list list all jobs");
 		System.err.println(" build : create new scheduler from an existing Makefile ");
 		System.err.println(" run  execute one step");
+		System.err.println(" watch  execute the steps until the end of the workflow");
 		System.err.println(" eow  (end of workflow) returns 0 if  more job to be run");
 		return -1;
 	} else
@@ -849,6 +2955,8 @@ private int instanceMain(final String[] args) {
 			return build(args2);
 		} else if(args[0].equals("run")) {
 			return runstep(args2);
+		}else if(args[0].equals("watch")) {
+			return watch(args2);
 		}else if(args[0].equals("eow")) {
 			return runeow(args2);
 		}
@@ -859,7 +2967,20 @@ private int instanceMain(final String[] args) {
 		}
 	}
 
+/** returns the number of cores of a task: declared in its recipe with '#MSUB -c N' or '#$ -pe ENV N', or guessed from the pipes */
+protected int getCores(final Task t)
+	{
+	for(final String line: t.shellScriptLines)
+		{
+		Matcher m = MSUB_CORES.matcher(line.trim());
+		if(!m.matches()) m = SGE_PE_CORES.matcher(line.trim());
+		if(m.matches()) return Math.max(1, Integer.parseInt(m.group(1)));
+		}
+	return countProcessors(t.shellScriptLines);
+	}
 
+/** guess the number of processes of a recipe running at the same time: the processes of its longest pipeline.
+ * A new line, ';', '&&' and '||' start another command. The '|' in quotes are ignored */
 protected int countProcessors(final List<String> lines)
 	{
 	final String script=String.join("\n", lines);
@@ -879,6 +3000,7 @@ protected int countProcessors(final List<String> lines)
 				if(script.charAt(i)=='\\') ++i;
 				++i;
 				}
+			i++;//closing quote
 			continue;
 			}
 		else if(c1=='\\' && c2=='\n')
@@ -893,7 +3015,15 @@ protected int countProcessors(final List<String> lines)
 			i+=2;
 			continue;
 			}
-		else if(c1=='\n' || c1==';' || c1=='|')
+		else if(c1=='|')
+			{
+			/* one more process in the pipeline */
+			proc++;
+			maxproc = Math.max(proc, maxproc);
+			i++;
+			continue;
+			}
+		else if(c1=='\n' || c1==';')
 			{
 			maxproc = Math.max(proc, maxproc);
 			proc = 1;
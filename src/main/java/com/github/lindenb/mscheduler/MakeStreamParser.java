@@ -0,0 +1,178 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.LoggerFactory;
+
+/** Reads the output of `make -ndr` and returns the Tasks one by one, without building the whole graph in memory.
+ * A Task is returned when make has finished with it, so the prerequisites always come before the tasks depending on them.
+ * The last Task is &lt;ROOT&gt;, its prerequisites are the goals.
+ * example output:
+<pre>
+Updating goal targets....
+Considering target file 'all'.
+ File 'all' does not exist.
+  Considering target file 'jeter1.txt'.
+   File 'jeter1.txt' does not exist.
+   Finished prerequisites of target file 'jeter1.txt'.
+  Must remake target 'jeter1.txt'.
+touch jeter1.txt
+  Successfully remade target file 'jeter1.txt'.
+ Finished prerequisites of target file 'all'.
+Must remake target 'all'.
+echo "Hello world"
+Successfully remade target file 'all'.
+</pre>
+ */
+class MakeStreamParser
+	{
+	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(MakeStreamParser.class);
+	/* make 3.81 quotes the names with `name', make 4 with 'name' */
+	private static final Pattern CONSIDERING = Pattern.compile("^\\s*Considering target file [`'](.*)'\\.$");
+	private static final Pattern PRUNING = Pattern.compile("^\\s*Pruning file [`'](.*)'\\.$");
+	private static final Pattern MUST_REMAKE = Pattern.compile("^\\s*Must remake target [`'](.*)'\\.$");
+	private static final Pattern REMADE = Pattern.compile("^\\s*Successfully remade target file [`'](.*)'\\.$");
+	private static final Pattern NO_NEED = Pattern.compile("^\\s*No need to remake target [`'](.*)'\\..*$");
+	private static final Pattern NOT_REMADE = Pattern.compile("^\\s*Target [`'](.*)' not remade because of errors\\.$");
+	/* printed by 'make -C' before the first recipe, not part of it */
+	private static final Pattern DIRECTORY = Pattern.compile("^\\S*make(\\[[0-9]+\\])?: (Entering|Leaving) directory .*$");
+	private final BufferedReader in;
+	/** targets being considered by make */
+	private final Deque<Task> stack = new ArrayDeque<>();
+	private final Task root = new Task("<ROOT>");
+	/** target whose recipe is being read */
+	private Task recipeTask = null;
+	/** false while make is updating the makefiles */
+	private boolean goalPhase = false;
+	private boolean rootReturned = false;
+	private long nodeId = 0L;
+	
+	MakeStreamParser(final BufferedReader in)
+		{
+		this.in = in;
+		this.root.nodeId = 0L;
+		this.root.definitionLoaded = true;
+		}
+	
+	private Task pop(final String targetName)
+		{
+		final Task t = this.stack.pop();
+		if(!t.getName().equals(targetName))
+			{
+			LOG.warn("expected end of "+t.getName()+" but got "+targetName);
+			}
+		return t;
+		}
+	
+	private void addPrerequisite(final String targetName)
+		{
+		final Task parent = this.stack.peek();
+		if(parent!=null)
+			{
+			parent.getPrerequisites().add(targetName);
+			}
+		else if(this.goalPhase)
+			{
+			this.root.getPrerequisites().add(targetName);
+			}
+		}
+	
+	/** returns the next Task or null at the end of the stream */
+	Task next() throws IOException
+		{
+		String line;
+		while((line=this.in.readLine())!=null)
+			{
+			Matcher m;
+			if(DIRECTORY.matcher(line).matches()) continue;
+			if(this.recipeTask!=null)
+				{
+				m = REMADE.matcher(line);
+				if(!m.matches())
+					{
+					this.recipeTask.shellScriptLines.add(line);
+					continue;
+					}
+				this.recipeTask = null;
+				return pop(m.group(1));
+				}
+			
+			if((m=CONSIDERING.matcher(line)).matches())
+				{
+				final Task t = new Task(m.group(1));
+				t.nodeId = ++this.nodeId;
+				t.definitionLoaded = true;
+				addPrerequisite(t.getName());
+				this.stack.push(t);
+				}
+			else if((m=PRUNING.matcher(line)).matches())
+				{
+				addPrerequisite(m.group(1));
+				}
+			else if((m=MUST_REMAKE.matcher(line)).matches())
+				{
+				final Task t = this.stack.peek();
+				if(t!=null && t.getName().equals(m.group(1)))
+					{
+					this.recipeTask = t;
+					}
+				}
+			else if((m=REMADE.matcher(line)).matches() ||
+					(m=NO_NEED.matcher(line)).matches() ||
+					(m=NOT_REMADE.matcher(line)).matches())
+				{
+				if(this.stack.isEmpty())
+					{
+					LOG.warn("no target for "+line);
+					continue;
+					}
+				return pop(m.group(1));
+				}
+			else if(line.startsWith("Updating goal targets"))
+				{
+				this.goalPhase = true;
+				}
+			}
+		if(!this.stack.isEmpty())
+			{
+			LOG.warn("unexpected end of make output");
+			this.recipeTask = null;
+			return this.stack.pop();
+			}
+		if(!this.rootReturned)
+			{
+			this.rootReturned = true;
+			return this.root;
+			}
+		return null;
+		}
+	}
@@ -0,0 +1,376 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.slf4j.LoggerFactory;
+
+/** counters, gauges and latency histograms of a scheduler.
+ * They are exposed through JMX as com.github.lindenb.mscheduler:type=Metrics while a command runs,
+ * and written in the Prometheus text format, e.g. for the textfile collector of node_exporter.
+ * The values are those of the current process: each invocation of 'run' starts from zero */
+class Metrics implements DynamicMBean {
+	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(Metrics.class);
+	static final String OBJECT_NAME = "com.github.lindenb.mscheduler:type=Metrics";
+	/** upper bounds of the buckets of the histograms, seconds */
+	private static final double BUCKETS[] = new double[]{
+		0.00001, 0.0001, 0.001, 0.01, 0.1, 0.5, 1.0, 5.0, 10.0, 60.0, 300.0
+		};
+	
+	private enum Type { counter, gauge, histogram }
+	
+	/** the metrics having the same name and different labels */
+	private static class Family
+		{
+		final String name;
+		final String help;
+		final Type type;
+		/** key is the formatted labels, e.g. 'op="get"' */
+		final SortedMap<String,Object> metrics = new TreeMap<>();
+		Family(final String name,final String help,final Type type)
+			{
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			}
+		}
+	
+	static class Counter
+		{
+		private final LongAdder value = new LongAdder();
+		void inc() { this.value.increment();}
+		void add(final long n) { this.value.add(n);}
+		long get() { return this.value.sum();}
+		}
+	
+	static class Gauge
+		{
+		private final AtomicLong value = new AtomicLong(0L);
+		void set(final long n) { this.value.set(n);}
+		long get() { return this.value.get();}
+		}
+	
+	static class Histogram
+		{
+		/* one more bucket for +Inf, the counts are not cumulative */
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length+1);
+		private final DoubleAdder sum = new DoubleAdder();
+		private final LongAdder count = new LongAdder();
+		
+		void observe(final double seconds)
+			{
+			int i=0;
+			while(i< BUCKETS.length && seconds > BUCKETS[i]) ++i;
+			this.counts.incrementAndGet(i);
+			this.sum.add(seconds);
+			this.count.increment();
+			}
+		
+		/** observe the time elapsed since 'startNanos', a value of System.nanoTime() */
+		void observeSince(final long startNanos)
+			{
+			observe((System.nanoTime()-startNanos)/1e9);
+			}
+		
+		long getCount() { return this.count.sum();}
+		double getSum() { return this.sum.sum();}
+		}
+	
+	private final SortedMap<String,Family> families = new TreeMap<>();
+	private ObjectName objectName = null;
+	
+	private static String formatLabels(final String labels[])
+		{
+		if(labels.length%2!=0) throw new IllegalArgumentException("labels must be pairs of name/value");
+		final StringBuilder sb = new StringBuilder();
+		for(int i=0;i+1< labels.length;i+=2)
+			{
+			if(sb.length()>0) sb.append(",");
+			sb.append(labels[i]).append("=\"").
+				append(labels[i+1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).
+				append("\"");
+			}
+		return sb.toString();
+		}
+	
+	private synchronized Object get(final String name,final String help,final Type type,final String labels[])
+		{
+		Family family = this.families.get(name);
+		if(family==null)
+			{
+			family = new Family(name, help, type);
+			this.families.put(name, family);
+			}
+		else if(family.type!=type)
+			{
+			throw new IllegalArgumentException(name+" is a "+family.type);
+			}
+		final String key = formatLabels(labels);
+		Object metric = family.metrics.get(key);
+		if(metric==null)
+			{
+			switch(type)
+				{
+				case counter: metric = new Counter(); break;
+				case gauge: metric = new Gauge(); break;
+				default: metric = new Histogram(); break;
+				}
+			family.metrics.put(key, metric);
+			}
+		return metric;
+		}
+	
+	/** returns the counter 'name' having the given labels, e.g. counter("jobs_total","help","status","ok") */
+	Counter counter(final String name,final String help,final String...labels)
+		{
+		return (Counter)get(name, help, Type.counter, labels);
+		}
+	
+	Gauge gauge(final String name,final String help,final String...labels)
+		{
+		return (Gauge)get(name, help, Type.gauge, labels);
+		}
+	
+	Histogram histogram(final String name,final String help,final String...labels)
+		{
+		return (Histogram)get(name, help, Type.histogram, labels);
+		}
+	
+	private static String sampleName(final String name,final String labels)
+		{
+		return labels.isEmpty()?name:name+"{"+labels+"}";
+		}
+	
+	private static String formatDouble(final double v)
+		{
+		if(Double.isInfinite(v)) return v>0?"+Inf":"-Inf";
+		return String.format(Locale.ROOT, "%s", v);
+		}
+	
+	/** the values of the samples, by name: the '_bucket' samples of the histograms are only in the text format */
+	private synchronized Map<String,Number> getSamples()
+		{
+		final Map<String,Number> samples = new TreeMap<>();
+		for(final Family family: this.families.values())
+			{
+			for(final Map.Entry<String,Object> kv: family.metrics.entrySet())
+				{
+				final String labels = kv.getKey();
+				if(kv.getValue() instanceof Counter)
+					{
+					samples.put(sampleName(family.name, labels), Counter.class.cast(kv.getValue()).get());
+					}
+				else if(kv.getValue() instanceof Gauge)
+					{
+					samples.put(sampleName(family.name, labels), Gauge.class.cast(kv.getValue()).get());
+					}
+				else
+					{
+					final Histogram h = Histogram.class.cast(kv.getValue());
+					samples.put(sampleName(family.name+"_count", labels), h.getCount());
+					samples.put(sampleName(family.name+"_sum", labels), h.getSum());
+					}
+				}
+			}
+		return samples;
+		}
+	
+	/** print the metrics in the Prometheus text format */
+	synchronized void print(final PrintWriter pw)
+		{
+		for(final Family family: this.families.values())
+			{
+			pw.println("# HELP "+family.name+" "+family.help);
+			pw.println("# TYPE "+family.name+" "+family.type);
+			for(final Map.Entry<String,Object> kv: family.metrics.entrySet())
+				{
+				final String labels = kv.getKey();
+				if(kv.getValue() instanceof Counter)
+					{
+					pw.println(sampleName(family.name, labels)+" "+Counter.class.cast(kv.getValue()).get());
+					}
+				else if(kv.getValue() instanceof Gauge)
+					{
+					pw.println(sampleName(family.name, labels)+" "+Gauge.class.cast(kv.getValue()).get());
+					}
+				else
+					{
+					final Histogram h = Histogram.class.cast(kv.getValue());
+					final String prefix = labels.isEmpty()?"":labels+",";
+					long cumulative = 0L;
+					for(int i=0;i<= BUCKETS.length;++i)
+						{
+						cumulative += h.counts.get(i);
+						final double le = (i< BUCKETS.length?BUCKETS[i]:Double.POSITIVE_INFINITY);
+						pw.println(family.name+"_bucket{"+prefix+"le=\""+formatDouble(le)+"\"} "+cumulative);
+						}
+					pw.println(sampleName(family.name+"_sum", labels)+" "+formatDouble(h.getSum()));
+					pw.println(sampleName(family.name+"_count", labels)+" "+h.getCount());
+					}
+				}
+			}
+		}
+	
+	/** write the metrics in 'file'. The file is replaced at once, so a collector never reads it half written.
+	 * The temporary file is unique, two processes writing the metrics at the same time don't share it */
+	int write(final File file)
+		{
+		File tmp = null;
+		PrintWriter pw = null;
+		try {
+			tmp = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName()+".", ".tmp").toFile();
+			/* created private, but read by the collector as the previous file */
+			tmp.setReadable(true, false);
+			pw = new PrintWriter(new BufferedWriter(new FileWriter(tmp)));
+			print(pw);
+			pw.flush();
+			if(pw.checkError()) throw new IOException("Cannot write "+tmp);
+			pw.close();
+			pw = null;
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return 0;
+			}
+		catch(final IOException err)
+			{
+			LOG.warn("Cannot write the metrics in "+file, err);
+			if(tmp!=null) tmp.delete();
+			return -1;
+			}
+		finally
+			{
+			if(pw!=null) pw.close();
+			}
+		}
+	
+	/** publish the metrics in the platform MBeanServer, replacing those of another scheduler of the same JVM */
+	void register()
+		{
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(OBJECT_NAME);
+			if(server.isRegistered(name)) server.unregisterMBean(name);
+			server.registerMBean(this, name);
+			this.objectName = name;
+			}
+		catch(final Exception err)
+			{
+			LOG.warn("Cannot register the metrics in JMX", err);
+			}
+		}
+	
+	void unregister()
+		{
+		if(this.objectName==null) return;
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if(server.isRegistered(this.objectName)) server.unregisterMBean(this.objectName);
+			}
+		catch(final Exception err)
+			{
+			LOG.warn("Cannot unregister the metrics from JMX", err);
+			}
+		this.objectName = null;
+		}
+	
+	/* DynamicMBean: one read-only attribute per sample, named as in the Prometheus text format */
+	
+	@Override
+	public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+		final Number n = getSamples().get(attribute);
+		if(n==null) throw new AttributeNotFoundException(attribute);
+		return n;
+		}
+	
+	@Override
+	public AttributeList getAttributes(final String[] attributes) {
+		final Map<String,Number> samples = getSamples();
+		final AttributeList list = new AttributeList();
+		for(final String attribute: attributes)
+			{
+			final Number n = samples.get(attribute);
+			if(n!=null) list.add(new Attribute(attribute, n));
+			}
+		return list;
+		}
+	
+	@Override
+	public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("read-only metrics: "+attribute.getName());
+		}
+	
+	@Override
+	public AttributeList setAttributes(final AttributeList attributes) {
+		return new AttributeList();
+		}
+	
+	@Override
+	public Object invoke(final String actionName,final Object[] params,final String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+	
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		final List<MBeanAttributeInfo> infos = new ArrayList<>();
+		for(final Map.Entry<String,Number> kv: getSamples().entrySet())
+			{
+			infos.add(new MBeanAttributeInfo(kv.getKey(),
+				kv.getValue().getClass().getName(),
+				kv.getKey(),
+				true, false, false));
+			}
+		return new MBeanInfo(getClass().getName(),
+				"metrics of the scheduler, the durations are in seconds",
+				infos.toArray(new MBeanAttributeInfo[infos.size()]),
+				null, null, null);
+		}
+}
@@ -0,0 +1,181 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.LoggerFactory;
+
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/** durations of the tasks, kept across the workflows in their own BerkeleyDB environment.
+ * A task is found by the md5 of its recipe, then by the md5 of its name */
+class RuntimeHistory implements Closeable {
+	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(RuntimeHistory.class);
+	private Environment environment = null;
+	private Database database = null;
+	private boolean readOnly = true;
+
+	/** running mean and variance of the durations in seconds (Welford) */
+	static class Stats
+		{
+		long count = 0L;
+		double mean = 0.0;
+		double m2 = 0.0;
+
+		void add(final double seconds)
+			{
+			this.count++;
+			final double delta = seconds - this.mean;
+			this.mean += delta/this.count;
+			this.m2 += delta*(seconds - this.mean);
+			}
+
+		double getStdDev()
+			{
+			return this.count<2?0.0:Math.sqrt(this.m2/(this.count-1));
+			}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d mean=%.1fs sd=%.1fs", this.count, this.mean, getStdDev());
+			}
+		}
+
+	private static class StatsBinding extends TupleBinding<Stats>
+		{
+		@Override
+		public Stats entryToObject(final TupleInput in) {
+			final Stats stats = new Stats();
+			stats.count = in.readPackedLong();
+			stats.mean = in.readDouble();
+			stats.m2 = in.readDouble();
+			return stats;
+			}
+		@Override
+		public void objectToEntry(final Stats stats,final TupleOutput out) {
+			out.writePackedLong(stats.count);
+			out.writeDouble(stats.mean);
+			out.writeDouble(stats.m2);
+			}
+		}
+	private final StatsBinding statsBinding = new StatsBinding();
+
+	/** returns true if 'directory' contains a BerkeleyDB environment. Any log file is tested: the cleaner deletes the old ones */
+	private static boolean isEnvironment(final File directory) {
+		final File logs[] = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir,final String name) {
+				return name.endsWith(".jdb");
+				}
+			});
+		return logs!=null && logs.length>0;
+		}
+
+	/** open the history in 'directory'. A read-only history that doesn't exist yet is empty */
+	RuntimeHistory(final File directory,final boolean readOnly)
+		{
+		if(readOnly && !isEnvironment(directory)) {
+			LOG.info("no history in "+directory);
+			return;
+			}
+		if(!readOnly && !directory.exists() && !directory.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create "+directory);
+			}
+		final EnvironmentConfig envCfg = new EnvironmentConfig();
+		envCfg.setAllowCreate(!readOnly);
+		envCfg.setReadOnly(readOnly);
+		envCfg.setTransactional(false);
+		this.environment = new Environment(directory, envCfg);
+		final DatabaseConfig cfg = new DatabaseConfig();
+		cfg.setAllowCreate(!readOnly);
+		cfg.setReadOnly(readOnly);
+		this.database = this.environment.openDatabase(null, "durations", cfg);
+		this.readOnly = readOnly;
+		}
+
+	private static String recipeKey(final Task task) {
+		return "recipe:"+DigestUtils.md5Hex(String.join("\n", task.shellScriptLines));
+		}
+
+	private static String nameKey(final Task task) {
+		return "target:"+task.md5();
+		}
+
+	private Stats get(final String keyName) {
+		if(this.database==null) return null;
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		StringBinding.stringToEntry(keyName, key);
+		if(this.database.get(null, key, data, LockMode.DEFAULT)!=OperationStatus.SUCCESS) return null;
+		return this.statsBinding.entryToObject(data);
+		}
+
+	/** returns the durations of the previous runs of this task or null. The definition of the task must be loaded */
+	Stats get(final Task task) {
+		final Stats stats = get(recipeKey(task));
+		return stats!=null?stats:get(nameKey(task));
+		}
+
+	/** add the duration of a COMPLETED task, does nothing if the history is read-only. The definition of the task must be loaded */
+	void add(final Task task) {
+		if(this.readOnly) return;
+		if(task.startMilliSec<0L || task.endMilliSec<task.startMilliSec) return;
+		final double seconds = (task.endMilliSec - task.startMilliSec)/1000.0;
+		final DatabaseEntry key=new DatabaseEntry();
+		final DatabaseEntry data=new DatabaseEntry();
+		for(final String keyName: new String[]{recipeKey(task),nameKey(task)}) {
+			Stats stats = get(keyName);
+			if(stats==null) stats = new Stats();
+			stats.add(seconds);
+			StringBinding.stringToEntry(keyName, key);
+			this.statsBinding.objectToEntry(stats, data);
+			if(this.database.put(null, key, data)!=OperationStatus.SUCCESS) {
+				LOG.warn("Cannot update the history of "+task);
+				}
+			}
+		}
+
+	@Override
+	public void close() {
+		if(this.database!=null) this.database.close();
+		this.database=null;
+		if(this.environment!=null) this.environment.close();
+		this.environment=null;
+		}
+}
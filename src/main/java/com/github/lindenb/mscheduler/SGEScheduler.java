@@ -29,10 +29,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
 import org.slf4j.LoggerFactory;
 
 import com.github.lindenb.mscheduler.io.IoUtils;
@@ -40,11 +50,47 @@ import com.github.lindenb.mscheduler.io.StreamBoozer;
 
 public class SGEScheduler extends MScheduler {
 	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SGEScheduler.class);
+	private static final String OPTION_ARRAY="array";
+	/** max number of tasks in an array job, tasks are submitted one by one if lower than 2 */
+	private int arraySize = 0;
 
 private SGEScheduler() {
 	
 }
 
+/** returns the SGE job id of a task, without the index of an array job */
+private static String getJobId(final Task task) {
+	final int dot = task.processId.indexOf('.');
+	return dot==-1?task.processId:task.processId.substring(0,dot);
+}
+
+/** returns the index of a task in an array job, or null */
+private static String getArrayTaskId(final Task task) {
+	final int dot = task.processId.indexOf('.');
+	return dot==-1?null:task.processId.substring(dot+1);
+}
+
+/** returns true if the index of an array job is in the 'ja-task-ID' of qstat, e.g. "3" or "1-10:1" or "4,6" */
+private static boolean isInTaskRange(final String range,final String taskId) {
+	final int id;
+	try {
+		id = Integer.parseInt(taskId);
+		for(final String token: range.split("[,]")) {
+			final int colon = token.indexOf(':');
+			final String interval = (colon==-1?token:token.substring(0,colon));
+			final int step = (colon==-1?1:Integer.parseInt(token.substring(colon+1)));
+			final int hyphen = interval.indexOf('-');
+			final int first = Integer.parseInt(hyphen==-1?interval:interval.substring(0,hyphen));
+			final int last = (hyphen==-1?first:Integer.parseInt(interval.substring(hyphen+1)));
+			if(id>=first && id<=last && (id-first)%Math.max(1,step)==0) return true;
+			}
+		}
+	catch(final NumberFormatException err) {
+		return false;
+		}
+	return false;
+}
+
 private class SGEStatusChecker extends StatusChecker
 	{
 	SGEStatusChecker(final Task task) {
@@ -53,6 +99,7 @@ private class SGEStatusChecker extends StatusChecker
 	@Override
 	public Integer call() throws Exception {
 		final Pattern wsSplit = Pattern.compile("[ \t]+");
+		final String arrayTaskId = getArrayTaskId(super.task);
 		/* first we try qstat, and then qacct */
 		for(int side=0; side < 2;++side)
 			{	
@@ -60,8 +107,23 @@ private class SGEStatusChecker extends StatusChecker
 			try {
 				final List<String> cmdargs= new ArrayList<>();
 				cmdargs.add(side==0?"qstat":"qacct");
-				cmdargs.add("-j");
-				cmdargs.add(super.task.processId);
+				if(side==0 && arrayTaskId!=null) {
+					/* `qstat -j` shows an array job until all its tasks are done: look for the ja-task-ID of the task,
+					 * one line per task of the array jobs, as SGEBulkStatusChecker */
+					cmdargs.add("-u");
+					cmdargs.add(System.getProperty("user.name"));
+					cmdargs.add("-g");
+					cmdargs.add("d");
+					}
+				else
+					{
+					cmdargs.add("-j");
+					cmdargs.add(getJobId(super.task));
+					}
+				if(side==1 && arrayTaskId!=null) {
+					cmdargs.add("-t");
+					cmdargs.add(arrayTaskId);
+					}
 				LOG.info("checking `"+String.join(" ", cmdargs)+"`");
 				final ProcessBuilder procbuilder= new ProcessBuilder(cmdargs);
 				procbuilder.directory(getBaseDirectory());
@@ -75,10 +137,17 @@ private class SGEStatusChecker extends StatusChecker
 				while((line=in.readLine())!=null)
 					{
 					LOG.info(line);
-					final String tokens[]=wsSplit.split(line);
+					final String tokens[]=wsSplit.split(side==0 && arrayTaskId!=null?line.trim():line);
 					if(tokens.length<2) continue;
-					if(side==0) {
-							if(tokens[0].equals("job_number:") && tokens[1].equals(task.processId)) {
+					if(side==0 && arrayTaskId!=null) {
+						if(tokens[0].equals(getJobId(task)) && isInTaskRange(tokens[tokens.length-1], arrayTaskId)) {
+							LOG.info("job "+super.task+" still running");
+							found_in_qstat = true;
+							task.targetStatus = TaskStatus.RUNNING;
+							}
+						}
+					else if(side==0) {
+							if(tokens[0].equals("job_number:") && tokens[1].equals(getJobId(task))) {
 							LOG.info("job "+super.task+" still running");
 							found_in_qstat = true;
 							task.targetStatus = TaskStatus.RUNNING;
@@ -133,23 +202,202 @@ private class SGEStatusChecker extends StatusChecker
 		}
 	}
 
+/** check all the RUNNING tasks with one call to `qstat -u user` and
+ * one call to `qacct` for the jobs that are not in qstat anymore
+ * example output of qstat:
+<pre>
+job-ID  prior   name       user         state submit/start at     queue                          slots ja-task-ID 
+-----------------------------------------------------------------------------------------------------------------
+ 393326 0.55500 n12        lindenb      r     05/18/2016 10:22:33 all.q@node1                        1        
+</pre>
+ */
+private class SGEBulkStatusChecker extends BulkStatusChecker
+	{
+	SGEBulkStatusChecker(final List<Task> tasks) {
+		super(tasks);
+		}
+	
+	/** run a command, returns the lines or null on failure */
+	private List<String> readLines(final List<String> cmdargs) throws Exception {
+		final String prefix = "["+cmdargs.get(0)+"]";
+		BufferedReader in = null;
+		try {
+			LOG.info("checking `"+String.join(" ", cmdargs)+"`");
+			final ProcessBuilder procbuilder= new ProcessBuilder(cmdargs);
+			procbuilder.directory(getBaseDirectory());
+			final Process proc = procbuilder.start();
+			final StreamBoozer sb = new StreamBoozer(proc.getErrorStream(),System.err,prefix);
+			sb.start();
+			in =new BufferedReader(new InputStreamReader(proc.getInputStream()));
+			final List<String> lines = new ArrayList<>();
+			String line;
+			while((line=in.readLine())!=null)
+				{
+				lines.add(line);
+				}
+			in.close();
+			in=null;
+			final int ret = proc.waitFor();
+			if(ret!=0)
+				{
+				LOG.error(prefix+" process failed");
+				return null;
+				}
+			return lines;
+			}
+		finally
+			{
+			IoUtils.close(in);
+			}
+		}
+	
+	@Override
+	public Integer call() throws Exception {
+		final Pattern wsSplit = Pattern.compile("[ \t]+");
+		final String user = System.getProperty("user.name");
+		
+		/* first we get all the jobs known by qstat */
+		final List<String> cmdargs= new ArrayList<>();
+		cmdargs.add("qstat");
+		cmdargs.add("-u");
+		cmdargs.add(user);
+		/* one line per task of the array jobs */
+		cmdargs.add("-g");
+		cmdargs.add("d");
+		List<String> lines = readLines(cmdargs);
+		if(lines==null) return -1;
+		final Set<String> qstatJobIds = new HashSet<>();
+		/* job id -> last column of its lines, the ja-task-ID of the array jobs */
+		final Map<String,List<String>> qstatTaskRanges = new HashMap<>();
+		for(final String line: lines)
+			{
+			final String tokens[]=wsSplit.split(line.trim());
+			if(tokens.length<2 || !tokens[0].matches("[0-9]+")) continue;
+			qstatJobIds.add(tokens[0]);
+			List<String> ranges = qstatTaskRanges.get(tokens[0]);
+			if(ranges==null) {
+				ranges = new ArrayList<>();
+				qstatTaskRanges.put(tokens[0], ranges);
+				}
+			ranges.add(tokens[tokens.length-1]);
+			}
+		
+		final List<Task> finished = new ArrayList<>();
+		long minStart = Long.MAX_VALUE;
+		for(final Task task: super.tasks)
+			{
+			final String jobId = getJobId(task);
+			final String arrayTaskId = getArrayTaskId(task);
+			boolean inQstat = qstatJobIds.contains(jobId);
+			if(inQstat && arrayTaskId!=null)
+				{
+				inQstat = false;
+				for(final String range: qstatTaskRanges.get(jobId))
+					{
+					if(isInTaskRange(range, arrayTaskId)) inQstat = true;
+					}
+				}
+			if(inQstat)
+				{
+				task.targetStatus = TaskStatus.RUNNING;
+				}
+			else
+				{
+				finished.add(task);
+				minStart = Math.min(minStart, task.startMilliSec);
+				}
+			}
+		LOG.info(qstatJobIds.size()+" job(s) in qstat. "+finished.size()+" job(s) to find in qacct");
+		if(finished.isEmpty()) return 0;
+		
+		/* then we read the accounting of the user since the oldest job that is not in qstat */
+		cmdargs.clear();
+		cmdargs.add("qacct");
+		cmdargs.add("-o");
+		cmdargs.add(user);
+		if(minStart>0L && minStart!=Long.MAX_VALUE)
+			{
+			cmdargs.add("-b");
+			/* one minute before, the clock of the cluster may differ */
+			cmdargs.add(new SimpleDateFormat("yyyyMMddHHmm").format(new Date(minStart - 60L*1000L)));
+			}
+		cmdargs.add("-j");
+		lines = readLines(cmdargs);
+		if(lines==null)
+			{
+			super.unresolved.addAll(finished);
+			return 0;
+			}
+		
+		/* job-id (with the index of the array jobs) -> job ok */
+		final Map<String,Boolean> qacctJobs = new HashMap<>();
+		String jobnumber = null;
+		boolean jobOk = true;
+		for(final String line: lines)
+			{
+			if(line.startsWith("=====")) {
+				if(jobnumber!=null) qacctJobs.put(jobnumber, jobOk);
+				jobnumber = null;
+				jobOk = true;
+				continue;
+				}
+			final String tokens[]=wsSplit.split(line);
+			if(tokens.length<2) continue;
+			if(tokens[0].equals("jobnumber")) {
+				jobnumber = tokens[1];
+				}
+			else if(tokens[0].equals("taskid") && tokens[1].matches("[0-9]+") && jobnumber!=null) {
+				/* 'undefined' if this is not an array job */
+				jobnumber = jobnumber+"."+tokens[1];
+				}
+			else if(tokens[0].equals("exit_status") || tokens[0].equals("failed")) {
+				if(!tokens[1].equals("0")) jobOk = false;
+				}
+			}
+		if(jobnumber!=null) qacctJobs.put(jobnumber, jobOk);
+		
+		for(final Task task: finished)
+			{
+			final Boolean ok = qacctJobs.get(task.processId);
+			if(ok==null)
+				{
+				super.unresolved.add(task);
+				}
+			else if(ok.booleanValue())
+				{
+				task.targetStatus = TaskStatus.COMPLETED;
+				}
+			else
+				{
+				LOG.info("job "+task+" FAILED");
+				task.targetStatus = TaskStatus.ERROR;
+				}
+			}
+		return 0;
+		}
+	}
+
 @Override
 protected StatusChecker createStatusChecker(final Task task) {
 	return new SGEStatusChecker(task);
 	}
 
+@Override
+protected BulkStatusChecker createBulkStatusChecker(final List<Task> tasks) {
+	return new SGEBulkStatusChecker(tasks);
+	}
+
 @Override
 protected void kill(final Task t) throws IOException {
 	LOG.info("killing "+t);
-	Runtime.getRuntime().exec("qdel "+t.processId);
+	final String arrayTaskId = getArrayTaskId(t);
+	Runtime.getRuntime().exec("qdel "+getJobId(t)+(arrayTaskId==null?"":" -t "+arrayTaskId));
 	//lindenb has registered the job 393403 for deletion
 }
 
-@Override
-protected int submitJob(final Task task) {
-	LOG.info("Submitting "+task);
+/** write the script of a task and its stdout/stderr files */
+private void writeScript(final Task task) throws IOException {
 	PrintWriter pw = null;
-	BufferedReader in=null;
 	try {
 		task.shellScriptFile = File.createTempFile("tmp.", ".bash",getWorkingDirectory());
 		task.stdoutFile = File.createTempFile("tmp.", "."+task.nodeId+".stdout",getWorkingDirectory());
@@ -162,11 +410,11 @@ protected int submitJob(final Task task) {
 		pw.println("#$ -e "+task.stderrFile.getPath());
 		pw.println("#$ -cwd");
 		pw.println("#$ -S /bin/bash");
-		for(final String s:task.shellScriptLines) {
-			if(!s.startsWith("#$")) continue;
+		for(final String s: getResourceHeaders(task)) {
 			pw.println(s);
 			}
 		
+		printExitCodeTrap(pw, task);
 		pw.println("cd '"+super.getBaseDirectory()+"' ;");
 		
 		for(final String s:task.shellScriptLines) {
@@ -180,42 +428,80 @@ protected int submitJob(final Task task) {
 		pw=null;
 		
 		makeExecutable(task.shellScriptFile);
-		
+	} finally {
+		IoUtils.close(pw);
+	}
+}
+
+/** returns the '#$' lines of the recipe */
+private static List<String> getResourceHeaders(final Task task) {
+	final List<String> headers = new ArrayList<>();
+	for(final String s:task.shellScriptLines) {
+		if(!s.startsWith("#$")) continue;
+		headers.add(s);
+		}
+	return headers;
+}
+
+/** invoke qsub -terse, returns the job id (e.g. "393326" or "393326.1-10:1" for an array job) or null on failure */
+private String qsub(final File script) throws Exception {
+	BufferedReader in=null;
+	try {
 		//Your job 393326 ("test.sh") has been submitted
-		
-		LOG.info("submitting "+task);
 		final List<String> cmdargs= new ArrayList<>();
 		cmdargs.add("qsub");
 		cmdargs.add("-terse");/* causes  the qsub to display only the job-id of the job being submitted rather than the regular "Your job ..." */
 		
 		
-		cmdargs.add(task.shellScriptFile.getName());
+		cmdargs.add(script.getName());
 		final ProcessBuilder procbuilder= new ProcessBuilder(cmdargs);
-		procbuilder.directory(task.shellScriptFile.getParentFile());
+		procbuilder.directory(script.getParentFile());
 		Process proc = procbuilder.start();
 		StreamBoozer sb = new StreamBoozer(proc.getErrorStream(),System.err,"[qsub]");
 		sb.start();
 		in =new BufferedReader(new InputStreamReader(proc.getInputStream()));
+		String jobId = null;
 		String line;
 		while((line=in.readLine())!=null)
 			{
-			final long sgejobid = Long.parseLong(line);
-			if( sgejobid <= 0L )
-				{
-				LOG.error("Bad job id in  "+line);
-				return -1;
-				}
-			task.processId=String.valueOf(sgejobid);
+			if(line.trim().isEmpty()) continue;
+			jobId = line.trim();
 			}
 		in.close();
+		in=null;
 		
 		final int ret = proc.waitFor();
 		if(ret!=0)
 			{
 			LOG.error("process failed : error "+ret);
-			return -1;
+			return null;
 			}
+		if( jobId == null )
+			{
+			LOG.error("Cannot get job id for "+script);
+			return null;
+			}
+		final int dot = jobId.indexOf('.');
+		final long sgejobid = Long.parseLong(dot==-1?jobId:jobId.substring(0,dot));
+		if( sgejobid <= 0L )
+			{
+			LOG.error("Bad job id in  "+jobId);
+			return null;
+			}
+		return jobId;
+	} finally {
+		IoUtils.close(in);
+	}
+}
+
+@Override
+protected int submitJob(final Task task) {
+	LOG.info("Submitting "+task);
+	try {
+		writeScript(task);
 		
+		LOG.info("submitting "+task);
+		task.processId = qsub(task.shellScriptFile);
 		if( task.processId == null )
 			{
 			LOG.error("Cannot get job id for "+task);
@@ -229,12 +515,129 @@ protected int submitJob(final Task task) {
 	} catch (final Exception e) {
 		LOG.error("boum", e);
 		return -1;	
+	}
+	
+	}
+
+/** with --array, the tasks having the same '#$' resource headers are submitted as array jobs */
+@Override
+protected int submitJobs(final List<Task> tasks) {
+	if(this.arraySize<2) return super.submitJobs(tasks);
+	final Map<List<String>,List<Task>> groups = new LinkedHashMap<>();
+	for(final Task task: tasks) {
+		final List<String> headers = getResourceHeaders(task);
+		List<Task> group = groups.get(headers);
+		if(group==null) {
+			group = new ArrayList<>();
+			groups.put(headers, group);
+			}
+		group.add(task);
+		}
+	for(final List<Task> group: groups.values()) {
+		for(int i=0;i< group.size();i+=this.arraySize) {
+			final List<Task> array = group.subList(i, Math.min(group.size(), i+this.arraySize));
+			if(array.size()==1) {
+				if(super.submitJobs(array)!=0) return -1;
+				}
+			else if(submitArrayJob(array)!=0) {
+				return -1;
+				}
+			}
+		}
+	return 0;
+	}
+
+/** submit the tasks as one array job. Each task has its own script, the script of the
+ * array job runs the script of the task matching $SGE_TASK_ID. The processId of the tasks is 'jobid.taskid' */
+private int submitArrayJob(final List<Task> tasks) {
+	LOG.info("Submitting "+tasks.size()+" tasks as an array job");
+	PrintWriter pw = null;
+	File dispatchFile = null;
+	try {
+		for(final Task task: tasks) {
+			writeScript(task);
+			}
+		dispatchFile = File.createTempFile("tmp.", ".array.bash",getWorkingDirectory());
+		pw = new PrintWriter(dispatchFile);
+		pw.println("#!/bin/bash");
+		pw.println("#");
+		pw.println("#$ -N a"+tasks.get(0).nodeId);
+		/* each task redirects its own output */
+		pw.println("#$ -o /dev/null");
+		pw.println("#$ -e /dev/null");
+		pw.println("#$ -cwd");
+		pw.println("#$ -S /bin/bash");
+		pw.println("#$ -t 1-"+tasks.size());
+		for(final String s: getResourceHeaders(tasks.get(0))) {
+			pw.println(s);
+			}
+		pw.println("case \"${SGE_TASK_ID}\" in");
+		/* the scripts are run by bash: their exec bit is set by a chmod that may not have run yet */
+		for(int i=0;i< tasks.size();++i) {
+			final Task task = tasks.get(i);
+			pw.println(" "+(i+1)+") exec bash '"+task.shellScriptFile.getPath()+"' > '"+
+					task.stdoutFile.getPath()+"' 2> '"+task.stderrFile.getPath()+"' ;;");
+			}
+		pw.println(" *) echo \"unknown SGE_TASK_ID ${SGE_TASK_ID}\" 1>&2 ; exit 1 ;;");
+		pw.println("esac");
+		pw.flush();
+		if(pw.checkError()) throw new IOException("Boum");
+		pw.close();
+		pw=null;
+		makeExecutable(dispatchFile);
+		
+		final String arrayJobId = qsub(dispatchFile);
+		if( arrayJobId == null )
+			{
+			LOG.error("Cannot get job id for "+dispatchFile);
+			return -1;
+			}
+		/* e.g. "393326.1-10:1" */
+		final int dot = arrayJobId.indexOf('.');
+		final String jobId = (dot==-1?arrayJobId:arrayJobId.substring(0,dot));
+		LOG.info("OK array job ID =" + arrayJobId );
+		final long now = System.currentTimeMillis();
+		for(int i=0;i< tasks.size();++i) {
+			final Task task = tasks.get(i);
+			task.processId = jobId+"."+(i+1);
+			task.startMilliSec = now;
+			task.targetStatus = TaskStatus.RUNNING;
+			}
+		return 0;
+	} catch (final Exception e) {
+		LOG.error("boum", e);
+		return -1;	
 	} finally {
 		IoUtils.close(pw);
+		/* qsub keeps a copy of the script */
+		if(dispatchFile!=null) dispatchFile.delete();
 	}
-	
 	}
 
+@Override
+protected void addSchedulingOptions(final Options options) {
+	super.addSchedulingOptions(options);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_ARRAY).
+			argName("N").
+			desc("submit the ready jobs having the same '#$' headers as array jobs of at most N tasks. Default: "+this.arraySize+" (no array job)").
+			build()
+			);
+	}
+
+@Override
+protected int parseSchedulingOptions(final CommandLine cmdLine) {
+	if(super.parseSchedulingOptions(cmdLine)!=0) return -1;
+	if(cmdLine.hasOption(OPTION_ARRAY)) {
+		this.arraySize = Integer.parseInt(cmdLine.getOptionValue(OPTION_ARRAY));
+		if(this.arraySize<0) {
+			LOG.error("bad value for --"+OPTION_ARRAY);
+			return -1;
+			}
+		}
+	return 0;
+	}
 
 public static void main(String[] args) {
 	new SGEScheduler().instanceMainWithExit(args);
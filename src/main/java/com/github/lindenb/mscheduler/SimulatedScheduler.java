@@ -0,0 +1,363 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.slf4j.LoggerFactory;
+
+/** a fake cluster to measure the scheduler on large workflows: nothing is run.
+ * The queue latency, the runtime and the exit status of a job are drawn at submission and
+ * encoded in its processId, so the simulated queue is the same for all the invocations of 'run'.
+ * The time spent submitting and checking the jobs is reported when the program exits */
+public class SimulatedScheduler extends MScheduler {
+	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SimulatedScheduler.class);
+	private static final String OPTION_SIM_LATENCY="sim-latency";
+	private static final String OPTION_SIM_RUNTIME="sim-runtime";
+	private static final String OPTION_SIM_DISTRIBUTION="sim-distribution";
+	private static final String OPTION_SIM_FAILURE="sim-failure-rate";
+	private static final String OPTION_SIM_SEED="sim-seed";
+	/** recipe line giving the simulated runtime of a task in seconds, see SyntheticMakefile */
+	static final String SIMULATE_ANNOTATION = "#SIMULATE";
+	private static final String PROCESS_PREFIX = "sim:";
+	
+	private enum Distribution { fixed, exponential, lognormal }
+	
+	/** mean time in the queue, seconds */
+	private double meanLatency = 1.0;
+	/** mean runtime of a job, seconds */
+	private double meanRuntime = 5.0;
+	private Distribution distribution = Distribution.exponential;
+	/** probability that a job fails */
+	private double failureRate = 0.0;
+	private long seed = 0L;
+	
+	/* the overhead of the scheduler, nanoseconds */
+	private long n_submitted = 0L;
+	private long submitNanos = 0L;
+	private long n_checked = 0L;
+	private long checkNanos = 0L;
+	/** number of jobs found COMPLETED or ERROR */
+	private long n_finished = 0L;
+	/** sum of the simulated queue time and runtime of the submitted jobs, milliseconds */
+	private long simulatedMillis = 0L;
+
+SimulatedScheduler() {
+	
+}
+
+/** the simulated job of a task */
+private static class SimulatedJob
+	{
+	final long submitMillis;
+	final long latencyMillis;
+	final long runtimeMillis;
+	final int exitCode;
+	/** 0 for the first submission of the task, incremented by each new submission */
+	final int attempt;
+	SimulatedJob(final long submitMillis,final long latencyMillis,final long runtimeMillis,final int exitCode,final int attempt) {
+		this.submitMillis = submitMillis;
+		this.latencyMillis = latencyMillis;
+		this.runtimeMillis = runtimeMillis;
+		this.exitCode = exitCode;
+		this.attempt = attempt;
+		}
+	/** decode a processId 'sim:submit:latency:runtime:exitcode:attempt', the attempt is 0 if missing */
+	static SimulatedJob parse(final String processId) {
+		if(processId==null || !processId.startsWith(PROCESS_PREFIX)) return null;
+		final String tokens[] = processId.substring(PROCESS_PREFIX.length()).split("[:]");
+		if(tokens.length!=4 && tokens.length!=5) return null;
+		try {
+			return new SimulatedJob(
+				Long.parseLong(tokens[0]),
+				Long.parseLong(tokens[1]),
+				Long.parseLong(tokens[2]),
+				Integer.parseInt(tokens[3]),
+				tokens.length==5?Integer.parseInt(tokens[4]):0
+				);
+			}
+		catch(final NumberFormatException err) {
+			return null;
+			}
+		}
+	@Override
+	public String toString() {
+		return PROCESS_PREFIX+this.submitMillis+":"+this.latencyMillis+":"+this.runtimeMillis+":"+this.exitCode+":"+this.attempt;
+		}
+	}
+
+/** set the status of a task from its simulated job */
+private static void applyStatus(final Task task,final long now) {
+	final SimulatedJob job = SimulatedJob.parse(task.processId);
+	if(job==null) {
+		LOG.warn("not a simulated job "+task);
+		task.targetStatus = TaskStatus.ERROR;
+		}
+	else if(now < job.submitMillis + job.latencyMillis + job.runtimeMillis) {
+		task.targetStatus = TaskStatus.RUNNING;
+		}
+	else
+		{
+		task.targetStatus = (job.exitCode==0?TaskStatus.COMPLETED:TaskStatus.ERROR);
+		}
+	}
+
+private class SimulatedStatusChecker extends StatusChecker
+	{
+	SimulatedStatusChecker(final Task task) {
+		super(task);
+		}
+	@Override
+	public Integer call() throws Exception {
+		applyStatus(super.task, System.currentTimeMillis());
+		return 0;
+		}
+	}
+
+/** all the jobs are resolved in memory, no thread per job */
+private class SimulatedBulkStatusChecker extends BulkStatusChecker
+	{
+	SimulatedBulkStatusChecker(final List<Task> tasks) {
+		super(tasks);
+		}
+	@Override
+	public Integer call() throws Exception {
+		final long now = System.currentTimeMillis();
+		for(final Task task: super.tasks) {
+			applyStatus(task, now);
+			}
+		return 0;
+		}
+	}
+
+@Override
+protected StatusChecker createStatusChecker(final Task task) {
+	return new SimulatedStatusChecker(task);
+	}
+
+@Override
+protected BulkStatusChecker createBulkStatusChecker(final List<Task> tasks) {
+	return new SimulatedBulkStatusChecker(tasks);
+	}
+
+@Override
+protected int updateJobStatus(final List<Task> tasks) {
+	final long start = System.nanoTime();
+	try {
+		return super.updateJobStatus(tasks);
+		}
+	finally {
+		this.checkNanos += System.nanoTime() - start;
+		this.n_checked += tasks.size();
+		for(final Task task: tasks) {
+			if(task.targetStatus!=TaskStatus.RUNNING) this.n_finished++;
+			}
+		}
+	}
+
+/** no script is run */
+@Override
+protected boolean hasExitCodeFiles() {
+	return false;
+	}
+
+/** the queue is in memory: it can be checked at each step */
+@Override
+protected long getDefaultPollInterval() {
+	return 0L;
+	}
+
+@Override
+protected void kill(final Task t) throws IOException {
+	LOG.info("killing simulated job "+t);
+	}
+
+/** returns a random duration in milliseconds with the given mean in seconds */
+private long nextDuration(final Random random,final double meanSeconds,final Distribution distribution) {
+	final double seconds;
+	switch(distribution) {
+		case fixed: seconds = meanSeconds; break;
+		case exponential: seconds = -meanSeconds * Math.log(1.0 - random.nextDouble()); break;
+		case lognormal:
+			{
+			/* sigma=1, mu chosen so the mean is meanSeconds */
+			final double mu = Math.log(Math.max(meanSeconds, 1e-6)) - 0.5;
+			seconds = Math.exp(mu + random.nextGaussian());
+			break;
+			}
+		default: throw new IllegalStateException(String.valueOf(distribution));
+		}
+	return Math.max(0L, Math.round(seconds * 1000.0));
+	}
+
+@Override
+protected int submitJob(final Task task) {
+	final long start = System.nanoTime();
+	try {
+		/* the same submission of a task always gets the same simulated job, a resubmission gets another one.
+		 * The processId of a task that failed or was killed is its previous job */
+		final SimulatedJob previous = SimulatedJob.parse(task.processId);
+		final int attempt = (previous==null?0:previous.attempt+1);
+		final Random random = new Random((this.seed * 31L + task.getName().hashCode()) * 31L + attempt);
+		double runtime = this.meanRuntime;
+		Distribution runtimeDistribution = this.distribution;
+		for(final String line: task.shellScriptLines) {
+			final String s = line.trim();
+			if(!s.startsWith(SIMULATE_ANNOTATION)) continue;
+			try {
+				runtime = Double.parseDouble(s.substring(SIMULATE_ANNOTATION.length()).trim());
+				runtimeDistribution = Distribution.fixed;
+				}
+			catch(final NumberFormatException err) {
+				LOG.warn("bad "+SIMULATE_ANNOTATION+" in "+task);
+				}
+			}
+		final SimulatedJob job = new SimulatedJob(
+				System.currentTimeMillis(),
+				nextDuration(random, this.meanLatency, Distribution.exponential),
+				nextDuration(random, runtime, runtimeDistribution),
+				random.nextDouble() < this.failureRate ? 1 : 0,
+				attempt
+				);
+		task.processId = job.toString();
+		task.startMilliSec = job.submitMillis;
+		task.targetStatus = TaskStatus.RUNNING;
+		this.simulatedMillis += job.latencyMillis + job.runtimeMillis;
+		this.n_submitted++;
+		return 0;
+		}
+	finally {
+		this.submitNanos += System.nanoTime() - start;
+		}
+	}
+
+@Override
+protected void addSchedulingOptions(final Options options) {
+	super.addSchedulingOptions(options);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_SIM_LATENCY).
+			argName("SECONDS").
+			desc("mean time of a job in the simulated queue (exponential). Default: "+this.meanLatency).
+			build()
+			);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_SIM_RUNTIME).
+			argName("SECONDS").
+			desc("mean runtime of a simulated job, unless its recipe contains '"+SIMULATE_ANNOTATION+" SECONDS'. Default: "+this.meanRuntime).
+			build()
+			);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_SIM_DISTRIBUTION).
+			argName("NAME").
+			desc("distribution of the runtimes: fixed, exponential or lognormal. Default: "+this.distribution).
+			build()
+			);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_SIM_FAILURE).
+			argName("P").
+			desc("probability that a simulated job fails. Default: "+this.failureRate).
+			build()
+			);
+	options.addOption(Option.builder().
+			hasArg(true).
+			longOpt(OPTION_SIM_SEED).
+			argName("SEED").
+			desc("random seed. Default: "+this.seed).
+			build()
+			);
+	}
+
+@Override
+protected int parseSchedulingOptions(final CommandLine cmdLine) {
+	if(super.parseSchedulingOptions(cmdLine)!=0) return -1;
+	try {
+		if(cmdLine.hasOption(OPTION_SIM_LATENCY)) {
+			this.meanLatency = Double.parseDouble(cmdLine.getOptionValue(OPTION_SIM_LATENCY));
+			}
+		if(cmdLine.hasOption(OPTION_SIM_RUNTIME)) {
+			this.meanRuntime = Double.parseDouble(cmdLine.getOptionValue(OPTION_SIM_RUNTIME));
+			}
+		if(cmdLine.hasOption(OPTION_SIM_DISTRIBUTION)) {
+			this.distribution = Distribution.valueOf(cmdLine.getOptionValue(OPTION_SIM_DISTRIBUTION));
+			}
+		if(cmdLine.hasOption(OPTION_SIM_FAILURE)) {
+			this.failureRate = Double.parseDouble(cmdLine.getOptionValue(OPTION_SIM_FAILURE));
+			}
+		if(cmdLine.hasOption(OPTION_SIM_SEED)) {
+			this.seed = Long.parseLong(cmdLine.getOptionValue(OPTION_SIM_SEED));
+			}
+		}
+	catch(final IllegalArgumentException err) {
+		LOG.error("bad simulation option", err);
+		return -1;
+		}
+	if(this.meanLatency<0.0 || this.meanRuntime<0.0 || this.failureRate<0.0 || this.failureRate>1.0) {
+		LOG.error("bad simulation option");
+		return -1;
+		}
+	return 0;
+	}
+
+/** print the time spent by the scheduler, apart from the simulated time of the jobs */
+private void report() {
+	if(this.n_submitted==0L && this.n_checked==0L) return;
+	final long n_tasks = this.n_submitted + this.n_finished;
+	LOG.info(String.format(
+		"scheduler overhead: %.1f ms in the steps for %d submitted and %d finished job(s): %.3f ms/job. "+
+		"submission: %.1f ms, status checks of %d job(s): %.1f ms. "+
+		"Simulated queue and run time of the submitted jobs: %d s",
+		getStepNanos()/1e6, this.n_submitted, this.n_finished, n_tasks==0L?0.0:getStepNanos()/1e6/n_tasks,
+		this.submitNanos/1e6, this.n_checked, this.checkNanos/1e6,
+		TimeUnit.MILLISECONDS.toSeconds(this.simulatedMillis)
+		));
+	}
+
+public static void main(String[] args) {
+	if(args.length>0 && args[0].equals("synthetic")) {
+		final String args2[]=new String[args.length-1];
+		System.arraycopy(args, 1, args2, 0, args2.length);
+		SyntheticMakefile.main(args2);
+		return;
+		}
+	final SimulatedScheduler app = new SimulatedScheduler();
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+		@Override
+		public void run() {
+			app.report();
+			}
+		});
+	app.instanceMainWithExit(args);
+	}
+}
@@ -0,0 +1,131 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/** last modification times of the files of the tasks, used by the option --up-to-date.
+ * The attributes are read in parallel by an executor and each file is only read once:
+ * on a shared filesystem a single stat can take several milliseconds.
+ * The files are asked with prefetch() as soon as they are known, then read with lastModified() */
+class StatCache implements Closeable
+	{
+	/** returned by lastModified for a file that doesn't exist */
+	static final long MISSING = -1L;
+	private final ExecutorService executor;
+	private final Metrics.Histogram statTime;
+	private final ConcurrentHashMap<Path,Future<Long>> cache = new ConcurrentHashMap<>();
+	
+	/** the executor is shut down by close() */
+	StatCache(final ExecutorService executor,final Metrics.Histogram statTime)
+		{
+		this.executor = executor;
+		this.statTime = statTime;
+		}
+	
+	/** start reading the attributes of 'file' if it is not in the cache, doesn't wait */
+	void prefetch(final File file)
+		{
+		getFuture(file.toPath());
+		}
+	
+	/** returns the last modification time of 'file' in milliseconds or MISSING. Waits for the attributes if needed */
+	long lastModified(final File file) throws IOException
+		{
+		try
+			{
+			return getFuture(file.toPath()).get();
+			}
+		catch(final InterruptedException err)
+			{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while reading the attributes of "+file);
+			}
+		catch(final ExecutionException err)
+			{
+			if(err.getCause() instanceof IOException) throw (IOException)err.getCause();
+			throw new IOException("Cannot read the attributes of "+file, err.getCause());
+			}
+		}
+	
+	/** forget all the files, eg. between two steps of 'watch' */
+	void clear()
+		{
+		this.cache.clear();
+		}
+	
+	private Future<Long> getFuture(final Path path)
+		{
+		final Future<Long> cached = this.cache.get(path);
+		if(cached!=null) return cached;
+		final FutureTask<Long> task = new FutureTask<>(new Callable<Long>() {
+			@Override
+			public Long call() throws IOException {
+				return stat(path);
+				}
+			});
+		final Future<Long> previous = this.cache.putIfAbsent(path, task);
+		if(previous!=null) return previous;
+		this.executor.execute(task);
+		return task;
+		}
+	
+	private long stat(final Path path) throws IOException
+		{
+		final long startNanos = System.nanoTime();
+		try
+			{
+			return Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime().toMillis();
+			}
+		catch(final NoSuchFileException err)
+			{
+			return MISSING;
+			}
+		finally
+			{
+			this.statTime.observeSince(startNanos);
+			}
+		}
+	
+	@Override
+	public void close()
+		{
+		this.executor.shutdownNow();
+		this.cache.clear();
+		}
+	}
@@ -0,0 +1,134 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Random;
+
+import org.slf4j.LoggerFactory;
+
+/** writes a random Makefile to benchmark the schedulers, see SimulatedScheduler.
+ * Target i depends on up to 'fan-in' targets chosen among the 'window' previous targets,
+ * the goal 'all' depends on the targets that no other target needs */
+public class SyntheticMakefile {
+	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(SyntheticMakefile.class);
+	private int n_targets = 10000;
+	private int fanIn = 3;
+	private int window = 1000;
+	private double meanRuntime = -1.0;
+	private long seed = 0L;
+	
+	private void usage() {
+		System.err.println("Usage: synthetic [-n TARGETS] [-k FAN-IN] [-w WINDOW] [-t SECONDS] [-s SEED] [-o FILE]");
+		System.err.println(" -n number of targets. Default: "+this.n_targets);
+		System.err.println(" -k max number of prerequisites of a target. Default: "+this.fanIn);
+		System.err.println(" -w the prerequisites are chosen among the WINDOW previous targets. Default: "+this.window);
+		System.err.println(" -t add '"+SimulatedScheduler.SIMULATE_ANNOTATION+" x' to the recipes, x being exponential with mean SECONDS");
+		System.err.println(" -s random seed. Default: "+this.seed);
+		System.err.println(" -o output file. Default: stdout");
+	}
+	
+	private int write(final PrintWriter pw) {
+		final Random random = new Random(this.seed);
+		/* targets that are a prerequisite of another target */
+		final BitSet used = new BitSet(this.n_targets);
+		pw.println(".DEFAULT_GOAL := all");
+		for(int i=0;i< this.n_targets;++i) {
+			pw.print("t"+i+".txt:");
+			final int n_prereqs = (i==0?0:random.nextInt(Math.min(i, this.fanIn)+1));
+			for(int j=0;j< n_prereqs;++j) {
+				final int p = i - 1 - random.nextInt(Math.min(i, this.window));
+				used.set(p);
+				pw.print(" t"+p+".txt");
+				}
+			pw.println();
+			if(this.meanRuntime>=0.0) {
+				pw.println(String.format(Locale.ROOT, "\t%s %.3f", SimulatedScheduler.SIMULATE_ANNOTATION, -this.meanRuntime*Math.log(1.0-random.nextDouble())));
+				}
+			pw.println("\ttouch $@");
+			}
+		pw.print("all:");
+		for(int i=0;i< this.n_targets;++i) {
+			if(!used.get(i)) pw.print(" t"+i+".txt");
+			}
+		pw.println();
+		pw.flush();
+		return pw.checkError()?-1:0;
+	}
+	
+	private int instanceMain(final String args[]) {
+		String output = null;
+		try {
+			int optind=0;
+			while(optind< args.length) {
+				final String opt = args[optind];
+				if(opt.equals("-h")) { usage(); return 0;}
+				if(optind+1>=args.length) { usage(); return -1;}
+				final String value = args[optind+1];
+				if(opt.equals("-n")) this.n_targets = Integer.parseInt(value);
+				else if(opt.equals("-k")) this.fanIn = Integer.parseInt(value);
+				else if(opt.equals("-w")) this.window = Integer.parseInt(value);
+				else if(opt.equals("-t")) this.meanRuntime = Double.parseDouble(value);
+				else if(opt.equals("-s")) this.seed = Long.parseLong(value);
+				else if(opt.equals("-o")) output = value;
+				else { usage(); return -1;}
+				optind+=2;
+				}
+			if(this.n_targets<1 || this.fanIn<0 || this.window<1) {
+				usage();
+				return -1;
+				}
+			}
+		catch(final NumberFormatException err) {
+			usage();
+			return -1;
+			}
+		PrintWriter pw = null;
+		try {
+			pw = new PrintWriter(output==null?
+					new BufferedWriter(new OutputStreamWriter(System.out)):
+					new BufferedWriter(new FileWriter(output))
+					);
+			final int ret = write(pw);
+			pw.close();
+			return ret;
+			}
+		catch(final IOException err) {
+			LOG.error("Boum", err);
+			return -1;
+			}
+	}
+	
+	public static void main(final String[] args) {
+		final int ret = new SyntheticMakefile().instanceMain(args);
+		if(ret!=0) System.exit(ret);
+	}
+}
@@ -11,13 +11,21 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.LoggerFactory;
 
 import com.github.lindenb.j4make.Target;
+import com.sleepycat.bind.tuple.StringBinding;
 import com.sleepycat.bind.tuple.TupleBinding;
 import com.sleepycat.bind.tuple.TupleInput;
 import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.SecondaryDatabase;
+import com.sleepycat.je.SecondaryKeyCreator;
 
 public class Task {
 	@SuppressWarnings("unused")
 	private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(Task.class);
+	/** recipe line giving the weight of a task in the critical path, see getWeight() */
+	static final String PRIORITY_ANNOTATION = "#PRIORITY";
+	/** weight of a task that never ran, see getWeight() */
+	static final int DEFAULT_WEIGHT = 60;
 	/** script file */
 	public List<String> shellScriptLines= new ArrayList<String>();
 	/** target name as defined in the Makefile */
@@ -42,27 +50,146 @@ public class Task {
 	public File stderrFile = null;
 	/** process ID */
 	public String processId = null;
+	/** number of prerequisites that are not COMPLETED yet */
+	public int pendingPrerequisites = 0;
+	/** weighted length of the longest chain of tasks starting with this one, the ready tasks with the highest priority run first */
+	public int priority = 0;
+	/** number of cores used by the job, 0 if unknown */
+	public int cores = 0;
+	/** true if shellScriptLines and the prerequisites were loaded, see DefinitionBinding */
+	boolean definitionLoaded = false;
+	/** true if the definition was read from an old record of 'targets' and is not in 'definitions' yet */
+	boolean inlineDefinition = false;
+	/** status saved in the 'targets' database, null for a new task. A change is written in the Journal when the task is saved */
+	TaskStatus storedStatus = null;
 	
 	
+	/** Encodes the mutable state of a Task in the 'targets' database.
+	 * The recipe and the prerequisites are stored once in the 'definitions' database, see DefinitionBinding.
+	 * 
+	 * Version 2 (current): the numbers have a fixed size so they can be read and written in place, see TaskView.
+	 * <ul>
+	 *  <li>byte: FORMAT_V2</li>
+	 *  <li>byte: status, see STATUS_CODES (OFFSET_STATUS)</li>
+	 *  <li>int: pendingPrerequisites, priority, cores (OFFSET_PENDING, OFFSET_PRIORITY, OFFSET_CORES)</li>
+	 *  <li>long: nodeId, startMilliSec, endMilliSec (OFFSET_NODEID, OFFSET_START, OFFSET_END)</li>
+	 *  <li>targetName, processId (from OFFSET_NAME)</li>
+	 *  <li>shellScriptFile, stdoutFile, stderrFile: relative to the working directory if possible</li>
+	 * </ul>
+	 * baseDir is not stored, it is set by the Binding.
+	 * 
+	 * Version 1 is the original layout: the record starts with the target name and contains the definition.
+	 * It can still be read and the returned Task has its definition loaded.
+	 */
 	static class Binding extends TupleBinding<Task>
 		{
-		private File readFile(final TupleInput in)
+		static final byte FORMAT_V2 = 2;
+		/* offsets of the fields of FORMAT_V2, the ints and the longs are big-endian */
+		static final int OFFSET_STATUS = 1;
+		static final int OFFSET_PENDING = 2;
+		static final int OFFSET_PRIORITY = 6;
+		static final int OFFSET_CORES = 10;
+		static final int OFFSET_NODEID = 14;
+		static final int OFFSET_START = 22;
+		static final int OFFSET_END = 30;
+		static final int OFFSET_NAME = 38;
+		/** do not change the order of the codes, they are stored in the database */
+		private static final TaskStatus STATUS_CODES[] = new TaskStatus[]{
+				TaskStatus.TOBEDONE,
+				TaskStatus.RUNNING,
+				TaskStatus.COMPLETED,
+				TaskStatus.ERROR
+				};
+		private final File workingDirectory;
+		private final File baseDir;
+		
+		Binding(final File workingDirectory,final File baseDir)
+			{
+			this.workingDirectory = workingDirectory;
+			this.baseDir = baseDir;
+			}
+		
+		static byte statusToCode(final TaskStatus status)
+			{
+			for(int i=0;i< STATUS_CODES.length;++i)
+				{
+				if(STATUS_CODES[i]==status) return (byte)i;
+				}
+			throw new IllegalArgumentException(String.valueOf(status));
+			}
+		
+		static TaskStatus codeToStatus(final byte code)
+			{
+			if(code<0 || code>=STATUS_CODES.length) throw new IllegalArgumentException("bad status code "+code);
+			return STATUS_CODES[code];
+			}
+		
+		/** returns the version of the encoded record */
+		static int getFormat(final TupleInput in)
+			{
+			if(in.getBufferLength()==0) return 1;
+			final byte b = in.getBufferBytes()[in.getBufferOffset()];
+			return b==FORMAT_V2 ? FORMAT_V2 : 1;
+			}
+		
+		static int readInt(final byte array[],final int offset)
+			{
+			return	((array[offset  ]&0xFF)<<24) |
+					((array[offset+1]&0xFF)<<16) |
+					((array[offset+2]&0xFF)<< 8) |
+					((array[offset+3]&0xFF));
+			}
+		
+		static void writeInt(final byte array[],final int offset,final int value)
+			{
+			array[offset  ] = (byte)(value>>>24);
+			array[offset+1] = (byte)(value>>>16);
+			array[offset+2] = (byte)(value>>> 8);
+			array[offset+3] = (byte)(value);
+			}
+		
+		static long readLong(final byte array[],final int offset)
+			{
+			return (((long)readInt(array,offset))<<32) | (readInt(array,offset+4) & 0xFFFFFFFFL);
+			}
+		
+		static void writeLong(final byte array[],final int offset,final long value)
+			{
+			writeInt(array,offset,(int)(value>>>32));
+			writeInt(array,offset+4,(int)value);
+			}
+		
+		private File readLegacyFile(final TupleInput in)
 			{
 			String path= in.readString();
 			return path.isEmpty()?null:new File(path);
 			}
 		
+		private File readFile(final TupleInput in)
+			{
+			final String path= in.readString();
+			if(path==null) return null;
+			final File f = new File(path);
+			return f.isAbsolute()?f:new File(this.workingDirectory,path);
+			}
+		
 		private void writeFile(final File file,final TupleOutput out)
 			{
-			out.writeString(
-					file==null?
-					"":
-					file.getPath()
-					);
+			if(file==null)
+				{
+				out.writeString((String)null);
+				}
+			else if(this.workingDirectory!=null && this.workingDirectory.equals(file.getAbsoluteFile().getParentFile()))
+				{
+				out.writeString(file.getName());
+				}
+			else
+				{
+				out.writeString(file.getAbsolutePath());
+				}
 			}
 		
-		@Override
-		public Task entryToObject(final TupleInput in) {
+		private Task entryToLegacyObject(final TupleInput in) {
 			String s = in.readString();
 			final Task t = new Task(s);
 			int n = in.readInt();
@@ -79,43 +206,168 @@ public class Task {
 			t.targetStatus = TaskStatus.valueOf(in.readString());
 			t.nodeId = in.readLong();
 			
-			t.shellScriptFile = readFile(in);
+			t.shellScriptFile = readLegacyFile(in);
 			t.startMilliSec = in.readLong();
 			t.endMilliSec = in.readLong();
-			t.baseDir = readFile(in);
-			t.stdoutFile = readFile(in);
-			t.stderrFile = readFile(in);
+			t.baseDir = readLegacyFile(in);
+			t.stdoutFile = readLegacyFile(in);
+			t.stderrFile = readLegacyFile(in);
 			
 			t.processId = in.readString();
 			if( t.processId.isEmpty()) t.processId=null;
+			t.definitionLoaded = true;
+			t.inlineDefinition = true;
+			return t;
+			}
+		
+		@Override
+		public Task entryToObject(final TupleInput in) {
+			if(getFormat(in)==1)
+				{
+				final Task t = entryToLegacyObject(in);
+				t.storedStatus = t.targetStatus;
+				return t;
+				}
+			final byte array[] = in.getBufferBytes();
+			final int offset = in.getBufferOffset();
+			in.skipFast(OFFSET_NAME);
+			final Task t = new Task(in.readString());
+			t.targetStatus = codeToStatus(array[offset+OFFSET_STATUS]);
+			t.storedStatus = t.targetStatus;
+			t.pendingPrerequisites = readInt(array,offset+OFFSET_PENDING);
+			t.priority = readInt(array,offset+OFFSET_PRIORITY);
+			t.cores = readInt(array,offset+OFFSET_CORES);
+			t.nodeId = readLong(array,offset+OFFSET_NODEID);
+			t.startMilliSec = readLong(array,offset+OFFSET_START);
+			t.endMilliSec = readLong(array,offset+OFFSET_END);
+			t.baseDir = this.baseDir;
+			t.processId = in.readString();
+			t.shellScriptFile = readFile(in);
+			t.stdoutFile = readFile(in);
+			t.stderrFile = readFile(in);
 			return t;
 			}
+		
 		@Override
 		public void objectToEntry(final Task t, TupleOutput out)
 			{
+			final byte header[] = new byte[OFFSET_NAME];
+			header[0] = FORMAT_V2;
+			header[OFFSET_STATUS] = statusToCode(t.targetStatus);
+			writeInt(header,OFFSET_PENDING,t.pendingPrerequisites);
+			writeInt(header,OFFSET_PRIORITY,t.priority);
+			writeInt(header,OFFSET_CORES,t.cores);
+			writeLong(header,OFFSET_NODEID,t.nodeId);
+			writeLong(header,OFFSET_START,t.startMilliSec);
+			writeLong(header,OFFSET_END,t.endMilliSec);
+			out.writeFast(header);
 			out.writeString(t.targetName);
-			out.writeInt(t.shellScriptLines.size());
+			out.writeString(t.processId);
+			this.writeFile(t.shellScriptFile,out);
+			this.writeFile(t.stdoutFile,out);
+			this.writeFile(t.stderrFile,out);
+			}
+		}
+	
+	/** Encodes the immutable definition of a Task in the 'definitions' database, the key is the target name:
+	 * <ul>
+	 *  <li>packed count of shellScriptLines, the lines</li>
+	 *  <li>packed count of prerequisites, each one as the length of the prefix shared with the previous name (starting with targetName) and the remaining suffix</li>
+	 * </ul>
+	 */
+	static class DefinitionBinding
+		{
+		/** fill the shellScriptLines and the prerequisites of the task */
+		static void readDefinition(final TupleInput in,final Task t)
+			{
+			t.shellScriptLines.clear();
+			t._prerequisites.clear();
+			int n = in.readPackedInt();
+			for(int i=0;i< n;++i)
+				{
+				t.shellScriptLines.add(in.readString());
+				}
+			n = in.readPackedInt();
+			String prev = t.targetName;
+			for(int i=0;i< n;++i)
+				{
+				final int shared = in.readPackedInt();
+				prev = prev.substring(0, shared) + in.readString();
+				t._prerequisites.add(prev);
+				}
+			t.definitionLoaded = true;
+			}
+		
+		static void readDefinition(final DatabaseEntry data,final Task t)
+			{
+			readDefinition(TupleBinding.entryToInput(data), t);
+			}
+		
+		static void writeDefinition(final Task t,final DatabaseEntry data)
+			{
+			if(!t.definitionLoaded) throw new IllegalStateException("definition of "+t+" was not loaded");
+			final TupleOutput out = new TupleOutput();
+			out.writePackedInt(t.shellScriptLines.size());
 			for(final String s: t.shellScriptLines)
 				{
 				out.writeString(s);
 				}
-			out.writeInt(t._prerequisites.size());
+			out.writePackedInt(t._prerequisites.size());
+			String prev = t.targetName;
 			for(final String s: t._prerequisites)
 				{
-				out.writeString(s);
+				int shared = 0;
+				final int max = Math.min(prev.length(), s.length());
+				while(shared < max && prev.charAt(shared)==s.charAt(shared)) ++shared;
+				out.writePackedInt(shared);
+				out.writeString(s.substring(shared));
+				prev = s;
 				}
-			out.writeString(t.targetStatus.name());
-			out.writeLong(t.nodeId);
-			this.writeFile(t.shellScriptFile,out);
-			out.writeLong(t.startMilliSec);
-			out.writeLong(t.endMilliSec);
-			this.writeFile(t.baseDir,out);
-			this.writeFile(t.stdoutFile,out);
-			this.writeFile(t.stderrFile,out);
-			out.writeString(t.processId==null?"":t.processId);
+			TupleBinding.outputToEntry(out, data);
 			}
 		}
 	
+	/** creates the key of the 'targets by status' secondary database.
+	 * Only reads the beginning of the record, the &lt;ROOT&gt; target is not indexed */
+	static class StatusKeyCreator implements SecondaryKeyCreator
+		{
+		@Override
+		public boolean createSecondaryKey(
+				final SecondaryDatabase secondary,
+				final DatabaseEntry key,
+				final DatabaseEntry data,
+				final DatabaseEntry result)
+			{
+			final TupleInput in = TupleBinding.entryToInput(data);
+			final TaskStatus status;
+			final String name;
+			if(Binding.getFormat(in)==1)
+				{
+				name = in.readString();
+				int n = in.readInt();
+				for(int i=0;i< n;++i) in.readString();
+				n = in.readInt();
+				for(int i=0;i< n;++i) in.readString();
+				status = TaskStatus.valueOf(in.readString());
+				}
+			else
+				{
+				status = Binding.codeToStatus(in.getBufferBytes()[in.getBufferOffset()+Binding.OFFSET_STATUS]);
+				in.skipFast(Binding.OFFSET_NAME);
+				name = in.readString();
+				}
+			if(name.contains("<")) return false;//<ROOT>
+			statusToEntry(status, result);
+			return true;
+			}
+		}
+	
+	/** fill the key of the 'targets by status' secondary database */
+	static void statusToEntry(final TaskStatus status,final DatabaseEntry entry)
+		{
+		StringBinding.stringToEntry(status.name(), entry);
+		}
+	
 	public Task(final Target t)
 		{
 		this(t.getName());
@@ -124,6 +376,7 @@ public class Task {
     	 for(final Target c:t.getPrerequisites()) {
     		 this._prerequisites.add(c.getName());
     	 }
+    	this.definitionLoaded = true;
 
 		}
 	
@@ -173,10 +426,43 @@ public class Task {
 		}
 	
 	
+	/** returns the weight of this task in the critical path, in seconds: 0 without recipe, the value of a '#PRIORITY n' line of the recipe,
+	 * the mean duration of the previous runs or DEFAULT_WEIGHT. The definition must be loaded */
+	public int getWeight(final RuntimeHistory.Stats history)
+		{
+		if(this.shellScriptLines.isEmpty()) return 0;
+		for(final String line: this.shellScriptLines)
+			{
+			final String s = line.trim();
+			if(!s.startsWith(PRIORITY_ANNOTATION)) continue;
+			try {
+				return Math.max(0, Integer.parseInt(s.substring(PRIORITY_ANNOTATION.length()).trim()));
+				}
+			catch(final NumberFormatException err)
+				{
+				throw new IllegalArgumentException("bad "+PRIORITY_ANNOTATION+" in "+getName()+": "+line);
+				}
+			}
+		if(history!=null && history.count>0L) return (int)Math.max(1L, Math.round(history.mean));
+		return DEFAULT_WEIGHT;
+		}
+	
 	public String md5()
 		{
 		return DigestUtils.md5Hex(this.targetName);
 		}
+	
+	/** md5 of the recipe and of the prerequisites, used by 'build' to find the targets changed in the Makefile.
+	 * The definition must be loaded */
+	String definitionMd5()
+		{
+		if(!this.definitionLoaded) throw new IllegalStateException("definition of "+this+" was not loaded");
+		final StringBuilder sb = new StringBuilder();
+		for(final String line: this.shellScriptLines) sb.append(line).append('\n');
+		sb.append('\0');
+		for(final String prereq: this._prerequisites) sb.append(prereq).append('\n');
+		return DigestUtils.md5Hex(sb.toString());
+		}
 
 	public String duration()
 		{
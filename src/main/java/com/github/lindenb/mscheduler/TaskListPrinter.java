@@ -0,0 +1,298 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/** prints the tasks found by 'list' as TSV or JSON lines, or only their number per status.
+ * The filters on the status and on the name are tested by MScheduler before the records are decoded */
+class TaskListPrinter implements Closeable
+	{
+	enum Format { tsv, jsonl }
+	private static final int BUFFER_SIZE = 1<<20;
+	private final PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE));
+	private final Format format;
+	private final boolean summary;
+	/** the statuses to print, all if empty */
+	private final Set<TaskStatus> statuses = EnumSet.noneOf(TaskStatus.class);
+	/** glob of the names, or null */
+	private final Pattern namePattern;
+	/** the characters of the glob before the first wildcard */
+	private final String namePrefix;
+	private final long counts[] = new long[TaskStatus.values().length];
+	private long n_printed = 0L;
+	
+	TaskListPrinter(final Format format,final boolean summary,final Set<TaskStatus> statuses,final String nameGlob)
+		{
+		this.format = format;
+		this.summary = summary;
+		this.statuses.addAll(statuses);
+		this.namePattern = (nameGlob==null?null:globToPattern(nameGlob));
+		this.namePrefix = (nameGlob==null?"":literalPrefix(nameGlob));
+		}
+	
+	/** shell-like glob: '*' is any string, including '/', '?' is any character, [abc] and [!abc] are classes */
+	static Pattern globToPattern(final String glob)
+		{
+		final StringBuilder sb = new StringBuilder();
+		int i=0;
+		while(i< glob.length())
+			{
+			final char c = glob.charAt(i);
+			if(c=='*')
+				{
+				sb.append(".*");
+				}
+			else if(c=='?')
+				{
+				sb.append(".");
+				}
+			else if(c=='[' && glob.indexOf(']', i+2)!=-1)
+				{
+				final int end = glob.indexOf(']', i+2);
+				String set = glob.substring(i+1, end);
+				boolean negate = false;
+				if(set.startsWith("!") || set.startsWith("^"))
+					{
+					negate = true;
+					set = set.substring(1);
+					}
+				sb.append(negate?"[^":"[").append(set.replace("\\", "\\\\").replace("[", "\\[")).append("]");
+				i = end;
+				}
+			else
+				{
+				sb.append(Pattern.quote(String.valueOf(c)));
+				}
+			++i;
+			}
+		return Pattern.compile(sb.toString());
+		}
+	
+	static String literalPrefix(final String glob)
+		{
+		int i=0;
+		while(i< glob.length() && "*?[".indexOf(glob.charAt(i))==-1) ++i;
+		return glob.substring(0, i);
+		}
+	
+	/** all the names matching the glob start with this prefix */
+	String getNamePrefix()
+		{
+		return this.namePrefix;
+		}
+	
+	Set<TaskStatus> getStatuses()
+		{
+		return this.statuses;
+		}
+	
+	boolean isSummary()
+		{
+		return this.summary;
+		}
+	
+	boolean acceptName(final String name)
+		{
+		if(name.contains("<")) return false;//<ROOT>
+		return this.namePattern==null || this.namePattern.matcher(name).matches();
+		}
+	
+	boolean acceptStatus(final TaskStatus status)
+		{
+		return this.statuses.isEmpty() || this.statuses.contains(status);
+		}
+	
+	/** false if the output was closed, e.g. by 'head': no need to look for more tasks */
+	boolean isOpen()
+		{
+		/* checkError flushes the output */
+		if(this.summary || this.n_printed%10000!=0) return true;
+		return !this.pw.checkError();
+		}
+	
+	/** add the tasks of a status to the summary */
+	void count(final TaskStatus status,final long n)
+		{
+		this.counts[status.ordinal()] += n;
+		}
+	
+	/** print a task. Unless this is a summary, its definition must be loaded */
+	void print(final Task t)
+		{
+		count(t.targetStatus, 1L);
+		if(this.summary) return;
+		this.n_printed++;
+		if(this.format==Format.tsv)
+			{
+			this.pw.print(t.getName());
+			this.pw.print('\t');
+			this.pw.print(t.processId==null?"*":t.processId);
+			this.pw.print('\t');
+			this.pw.print(t.targetStatus);
+			this.pw.print('\t');
+			this.pw.print(t.md5());
+			this.pw.print('\t');
+			this.pw.print(t.duration());
+			this.pw.print('\t');
+			this.pw.print(t.shellScriptFile==null?"*":t.shellScriptFile);
+			this.pw.print('\t');
+			this.pw.print(String.join(" ", t.getPrerequisites()));
+			this.pw.println();
+			}
+		else
+			{
+			this.pw.print("{\"name\":");
+			printJson(t.getName());
+			this.pw.print(",\"processId\":");
+			printJson(t.processId);
+			this.pw.print(",\"status\":");
+			printJson(t.targetStatus.name());
+			this.pw.print(",\"md5\":");
+			printJson(t.md5());
+			this.pw.print(",\"start\":");
+			this.pw.print(t.startMilliSec);
+			this.pw.print(",\"end\":");
+			this.pw.print(t.endMilliSec);
+			this.pw.print(",\"priority\":");
+			this.pw.print(t.priority);
+			this.pw.print(",\"cores\":");
+			this.pw.print(t.cores);
+			this.pw.print(",\"script\":");
+			printJson(t.shellScriptFile==null?null:t.shellScriptFile.getPath());
+			this.pw.print(",\"prerequisites\":[");
+			boolean first = true;
+			for(final String prereq: t.getPrerequisites())
+				{
+				if(!first) this.pw.print(',');
+				first = false;
+				printJson(prereq);
+				}
+			this.pw.print("]}");
+			this.pw.println();
+			}
+		}
+	
+	/** print a task read from the journal: its name, processId and status */
+	void print(final Journal.Entry e)
+		{
+		count(e.status, 1L);
+		if(this.summary) return;
+		this.n_printed++;
+		if(this.format==Format.tsv)
+			{
+			this.pw.print(e.name);
+			this.pw.print('\t');
+			this.pw.print(e.processId==null?"*":e.processId);
+			this.pw.print('\t');
+			this.pw.print(e.status);
+			this.pw.println();
+			}
+		else
+			{
+			this.pw.print("{\"name\":");
+			printJson(e.name);
+			this.pw.print(",\"processId\":");
+			printJson(e.processId);
+			this.pw.print(",\"status\":");
+			printJson(e.status.name());
+			this.pw.print("}");
+			this.pw.println();
+			}
+		}
+	
+	private void printJson(final String s)
+		{
+		if(s==null)
+			{
+			this.pw.print("null");
+			return;
+			}
+		this.pw.print('\"');
+		for(int i=0;i< s.length();++i)
+			{
+			final char c = s.charAt(i);
+			switch(c)
+				{
+				case '\"': this.pw.print("\\\""); break;
+				case '\\': this.pw.print("\\\\"); break;
+				case '\n': this.pw.print("\\n"); break;
+				case '\r': this.pw.print("\\r"); break;
+				case '\t': this.pw.print("\\t"); break;
+				default:
+					if(c < 0x20)
+						{
+						this.pw.print(String.format("\\u%04x", (int)c));
+						}
+					else
+						{
+						this.pw.print(c);
+						}
+					break;
+				}
+			}
+		this.pw.print('\"');
+		}
+	
+	/** print the summary, if needed, and flush the output. System.out is not closed */
+	@Override
+	public void close()
+		{
+		if(this.summary)
+			{
+			long total = 0L;
+			for(final TaskStatus status: TaskStatus.values())
+				{
+				if(!acceptStatus(status)) continue;
+				final long n = this.counts[status.ordinal()];
+				total += n;
+				if(this.format==Format.tsv)
+					{
+					this.pw.println(status.name()+"\t"+n);
+					}
+				else
+					{
+					this.pw.println("{\"status\":\""+status.name()+"\",\"count\":"+n+"}");
+					}
+				}
+			if(this.format==Format.tsv)
+				{
+				this.pw.println("TOTAL\t"+total);
+				}
+			else
+				{
+				this.pw.println("{\"status\":\"TOTAL\",\"count\":"+total+"}");
+				}
+			}
+		this.pw.flush();
+		}
+	}
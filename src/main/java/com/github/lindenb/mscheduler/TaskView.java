@@ -0,0 +1,142 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2016 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package com.github.lindenb.mscheduler;
+
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.je.DatabaseEntry;
+
+/** A view over a record of the 'targets' database, used by the scheduler loop instead of a full Task.
+ * The fixed-size fields of Task.Binding.FORMAT_V2 are read and written in place in the bytes of the DatabaseEntry,
+ * the strings are only decoded when asked. A record in the original format is converted to FORMAT_V2 when it is wrapped.
+ * A view can be re-used for the next record with wrap() */
+class TaskView
+	{
+	private final Task.Binding binding;
+	private DatabaseEntry entry = null;
+	private byte array[] = null;
+	private int offset = 0;
+	private String targetName = null;
+	
+	TaskView(final Task.Binding binding)
+		{
+		this.binding = binding;
+		}
+	
+	/** point this view to the record in 'entry'. The entry must not be modified by the caller while it is viewed */
+	TaskView wrap(final DatabaseEntry entry)
+		{
+		if(Task.Binding.getFormat(TupleBinding.entryToInput(entry))!=Task.Binding.FORMAT_V2)
+			{
+			final Task t = this.binding.entryToObject(entry);
+			if(t.inlineDefinition) throw new IllegalStateException("record of "+t+" must be upgraded by 'build' first");
+			this.binding.objectToEntry(t, entry);
+			}
+		this.entry = entry;
+		this.array = entry.getData();
+		this.offset = entry.getOffset();
+		this.targetName = null;
+		return this;
+		}
+	
+	/** the record in the FORMAT_V2, with the changes made by the setters */
+	DatabaseEntry getEntry()
+		{
+		return this.entry;
+		}
+	
+	TaskStatus getStatus()
+		{
+		return Task.Binding.codeToStatus(this.array[this.offset+Task.Binding.OFFSET_STATUS]);
+		}
+	
+	void setStatus(final TaskStatus status)
+		{
+		this.array[this.offset+Task.Binding.OFFSET_STATUS] = Task.Binding.statusToCode(status);
+		}
+	
+	int getPendingPrerequisites()
+		{
+		return Task.Binding.readInt(this.array, this.offset+Task.Binding.OFFSET_PENDING);
+		}
+	
+	void setPendingPrerequisites(final int pending)
+		{
+		Task.Binding.writeInt(this.array, this.offset+Task.Binding.OFFSET_PENDING, pending);
+		}
+	
+	int getPriority()
+		{
+		return Task.Binding.readInt(this.array, this.offset+Task.Binding.OFFSET_PRIORITY);
+		}
+	
+	void setPriority(final int priority)
+		{
+		Task.Binding.writeInt(this.array, this.offset+Task.Binding.OFFSET_PRIORITY, priority);
+		}
+	
+	int getCores()
+		{
+		return Task.Binding.readInt(this.array, this.offset+Task.Binding.OFFSET_CORES);
+		}
+	
+	long getNodeId()
+		{
+		return Task.Binding.readLong(this.array, this.offset+Task.Binding.OFFSET_NODEID);
+		}
+	
+	String getName()
+		{
+		if(this.targetName==null)
+			{
+			this.targetName = newInput(Task.Binding.OFFSET_NAME).readString();
+			}
+		return this.targetName;
+		}
+	
+	String getProcessId()
+		{
+		final TupleInput in = newInput(Task.Binding.OFFSET_NAME);
+		in.readString();//name
+		return in.readString();
+		}
+	
+	/** decode the whole record */
+	Task toTask()
+		{
+		return this.binding.entryToObject(this.entry);
+		}
+	
+	private TupleInput newInput(final int fieldOffset)
+		{
+		return new TupleInput(this.array, this.offset+fieldOffset, this.entry.getSize()-fieldOffset);
+		}
+	
+	@Override
+	public String toString()
+		{
+		return getName();
+		}
+	}
@@ -0,0 +1,13 @@
+all: one.txt pipe3.txt quoted2.txt and2.txt msub8.txt
+
+one.txt:
+	echo A > $@
+pipe3.txt:
+	echo C B A | tr ' ' '\n' | sort > $@
+quoted2.txt:
+	echo 'a|b|c' | tr 'a' 'b' > $@
+and2.txt:
+	echo A | gzip > $@ && echo B > $@.log ; echo C > $@.done
+msub8.txt:
+	#MSUB -c 8
+	echo A | gzip | gunzip > $@